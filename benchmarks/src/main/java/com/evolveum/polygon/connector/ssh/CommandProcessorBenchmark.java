@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing of script arguments to command line, for all argument styles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandProcessorBenchmark {
+
+    @Param({ "dash", "dashdash", "slash", "variables-bash", "variables-powershell" })
+    public String argumentStyle;
+
+    @Param({ "3", "50" })
+    public int argumentCount;
+
+    @Param({ "asGone", "asEmptyString" })
+    public String handleNullValues;
+
+    private CommandProcessor commandProcessor;
+    private ScriptContext scriptContext;
+
+    @Setup
+    public void setup() {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle(argumentStyle);
+        configuration.setHandleNullValues(handleNullValues);
+        commandProcessor = new CommandProcessor(configuration);
+
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        for (int i = 0; i < argumentCount; i++) {
+            // Every fifth argument is null, some values contain quotes
+            arguments.put("argument" + i, i % 5 == 4 ? null : "value " + i + (i % 3 == 0 ? " with 'quotes'" : ""));
+        }
+        arguments.put(null, "positional");
+        scriptContext = new ScriptContext("bash", "/usr/local/bin/provision-account", arguments);
+    }
+
+    @Benchmark
+    public String process() {
+        return commandProcessor.process(scriptContext);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import net.schmizz.sshj.common.Buffer;
+import net.schmizz.sshj.common.KeyType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host key verification with large known_hosts sets, plain and hashed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KnownHostsVerifierBenchmark {
+
+    @Param({ "10", "1000", "10000" })
+    public int entryCount;
+
+    @Param({ "false", "true" })
+    public boolean hashed;
+
+    private ConnectorKnownHostsVerifier verifier;
+    private PublicKey key;
+    private String lastHost;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        key = generator.generateKeyPair().getPublic();
+        String encodedKey = KeyType.RSA + " " + Base64.getEncoder().encodeToString(new Buffer.PlainBuffer().putPublicKey(key).getCompactData());
+
+        SecureRandom random = new SecureRandom();
+        String[] knownHosts = new String[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            String host = "host" + i + ".example.com";
+            knownHosts[i] = (hashed ? hashHost(host, random) : host) + " " + encodedKey;
+            lastHost = host;
+        }
+        verifier = new ConnectorKnownHostsVerifier().parse(knownHosts);
+    }
+
+    private String hashHost(String host, SecureRandom random) throws Exception {
+        byte[] salt = new byte[20];
+        random.nextBytes(salt);
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(salt, "HmacSHA1"));
+        byte[] hash = mac.doFinal(host.getBytes(StandardCharsets.UTF_8));
+        return "|1|" + Base64.getEncoder().encodeToString(salt) + "|" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    /**
+     * Host that is at the end of the list.
+     */
+    @Benchmark
+    public boolean verifyKnownHost() {
+        return verifier.verify(lastHost, 22, key);
+    }
+
+    /**
+     * Host that is not in the list at all.
+     */
+    @Benchmark
+    public boolean verifyUnknownHost() {
+        return verifier.verify("unknown.example.com", 22, key);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quoting of argument values for each shell, with and without characters that need escaping.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuoteBenchmark {
+
+    @Param({ "POSIX", "POWERSHELL", "CMD" })
+    public String shell;
+
+    @Param({ "16", "1024", "65536" })
+    public int length;
+
+    /**
+     * Probability (in percent) of a single quote at any position of the value.
+     */
+    @Param({ "0", "5" })
+    public int quotePercent;
+
+    private ShellQuoter quoter;
+    private String value;
+
+    @Setup
+    public void setup() {
+        quoter = ShellQuoter.valueOf(shell);
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(random.nextInt(100) < quotePercent ? '\'' : (char) ('a' + random.nextInt(26)));
+        }
+        value = sb.toString();
+    }
+
+    @Benchmark
+    public String quote() {
+        return quoter.quote(value);
+    }
+}
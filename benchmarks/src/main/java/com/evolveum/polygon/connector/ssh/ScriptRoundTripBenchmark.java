@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full runScriptOnResource round trip against in-process SSH server,
+ * for the combinations of connection and execution modes.
+ * Run with "-t N" to see the behavior of N concurrent threads (each of them with its own connector instance).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptRoundTripBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        private final EmbeddedSshServer server = new EmbeddedSshServer();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            SshConnectionManager.getInstance().closeAll();
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connector {
+
+        @Param({ "exec", "persistent", "shared" })
+        public String connectionMode;
+
+        @Param({ "exec", "shell" })
+        public String executionMode;
+
+        private SshConnector connector;
+        private ScriptContext scriptContext;
+
+        @Setup(Level.Trial)
+        public void init(Server server) {
+            SshConfiguration configuration = new SshConfiguration();
+            configuration.setHost("localhost");
+            configuration.setPort(server.server.getPort());
+            configuration.setUsername(EmbeddedSshServer.USERNAME);
+            configuration.setPassword(new GuardedString(EmbeddedSshServer.PASSWORD.toCharArray()));
+            configuration.setConnectionMode(connectionMode);
+            configuration.setExecutionMode(executionMode);
+            if (SshConfiguration.EXECUTION_MODE_SHELL.equals(executionMode)) {
+                configuration.setIdleReadTimeout(10000);
+            }
+            connector = new SshConnector();
+            connector.init(configuration);
+            scriptContext = new ScriptContext("bash", "echo Hello World", null);
+        }
+
+        @TearDown(Level.Trial)
+        public void dispose() {
+            connector.dispose();
+        }
+    }
+
+    @Benchmark
+    public Object runScriptOnResource(Server server, Connector connector) {
+        return connector.connector.runScriptOnResource(connector.scriptContext, null);
+    }
+}
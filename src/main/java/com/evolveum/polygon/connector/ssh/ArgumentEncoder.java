@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+/**
+ * Writes script arguments to the command line in one argument style.
+ *
+ * Standard styles are implemented by StandardArgumentEncoder. Other styles may be provided by implementations
+ * registered in META-INF/services/com.evolveum.polygon.connector.ssh.ArgumentEncoder (selected by the style name
+ * in argumentStyle configuration property), or selected by the class name in argumentStyle.
+ *
+ * Encoder is used by all connector instances at once, it must be stateless (and thread-safe).
+ * It writes directly to the command line that is being built.
+ *
+ * @author semancik
+ */
+public interface ArgumentEncoder {
+
+    /**
+     * Name of the argument style, as used in argumentStyle configuration property.
+     */
+    String getStyle();
+
+    /**
+     * True if the arguments go before the command (e.g. variables), false if they go after the command (options).
+     */
+    boolean isArgumentsFirst();
+
+    /**
+     * Appends argument name, including any separators that go before the value.
+     * Names that are not safe to use are refused by ConnectorException. If quoteValues is false,
+     * the values are inserted as they are and the encoder may accept any name.
+     */
+    void appendName(StringBuilder sb, String name, boolean quoteValues);
+
+    /**
+     * Appends argument value, including any separators that go after the value.
+     *
+     * @param quoter quoting for the shell of the script language if the values should be quoted (quoteOptionValues),
+     *               null if the values should be inserted as they are. Encoders that always quote the values
+     *               for a particular shell may ignore it.
+     */
+    void appendValue(StringBuilder sb, Object value, ShellQuoter quoter);
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import net.schmizz.sshj.connection.channel.direct.Signal;
+import net.schmizz.sshj.transport.TransportException;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Waits for the output of a running command, watching command timeout and idle read timeout.
+ * The command is killed and its channel closed when any of the timeouts is reached.
+ *
+ * One stream of the command is read in the calling thread (see run), the timeouts are watched by the watchdog
+ * of SshExecutionEngine meanwhile. Other streams are read in background and the calling thread waits for them (see await).
+ *
+ * @author semancik
+ */
+public class CommandMonitor {
+
+    private static final Log LOG = Log.getLog(CommandMonitor.class);
+
+    private final long commandTimeout;
+    private final long idleTimeout;
+    private final String connectionDesc;
+    private final SignalSender signalSender;
+    private final Runnable closer;
+    private final OutputCollector[] collectors;
+    private final long startTs = System.currentTimeMillis();
+
+    // Watchdog state, guarded by "this"
+    private boolean watching = false;
+    private ScheduledFuture<?> watchdog = null;
+    private OperationTimeoutException timeout = null;
+
+    /**
+     * @param signalSender sends signal to the running command
+     * @param closer closes the channel of the command, which also stops the output pumps
+     * @param collectors collectors of the command output, used to detect idle command
+     */
+    public CommandMonitor(SshConfiguration configuration, String connectionDesc,
+            SignalSender signalSender, Runnable closer, OutputCollector... collectors) {
+        this.commandTimeout = configuration.getCommandTimeout();
+        this.idleTimeout = configuration.getIdleReadTimeout();
+        this.connectionDesc = connectionDesc;
+        this.signalSender = signalSender;
+        this.closer = closer;
+        this.collectors = collectors;
+    }
+
+    /**
+     * Runs the reader of the command output in the calling thread, so the command does not need another thread
+     * for the reading. When a timeout is reached, the watchdog kills the command, which makes the reader stop.
+     */
+    public <T> T run(Callable<T> reader) throws IOException {
+        startWatching();
+        T result;
+        try {
+            result = reader.call();
+        } catch (IOException | RuntimeException e) {
+            // Reading failed most likely because the channel was closed by the watchdog
+            throwTimeout();
+            throw e;
+        } catch (Exception e) {
+            throwTimeout();
+            throw new ConnectorException("Error reading output of SSH command: " + e.getMessage(), e);
+        } finally {
+            stopWatching();
+        }
+        // The reader may also end normally when the channel is closed
+        throwTimeout();
+        return result;
+    }
+
+    private synchronized void startWatching() {
+        watching = true;
+        scheduleCheck();
+    }
+
+    private synchronized void stopWatching() {
+        watching = false;
+        if (watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
+        }
+    }
+
+    private synchronized void scheduleCheck() {
+        if (!watching) {
+            return;
+        }
+        long delay;
+        try {
+            delay = timeToTimeout();
+        } catch (OperationTimeoutException e) {
+            timeout = e;
+            watching = false;
+            return;
+        }
+        if (delay != Long.MAX_VALUE) {
+            watchdog = SshExecutionEngine.schedule(this::scheduleCheck, delay);
+        }
+    }
+
+    private synchronized void throwTimeout() {
+        if (timeout != null) {
+            throw timeout;
+        }
+    }
+
+    /**
+     * Waits for the pump (or any other background reader of the command output) to finish.
+     */
+    public <T> T await(Future<T> pump) throws IOException {
+        try {
+            while (true) {
+                long wait = timeToTimeout();
+                try {
+                    return pump.get(wait, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Check the timeouts again
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException("Error reading output of SSH command: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while reading output of SSH command", e);
+        }
+    }
+
+    /**
+     * Returns time (in milliseconds) to the nearest timeout, Long.MAX_VALUE if there is no timeout.
+     * If a timeout was already reached, the command is killed and the exception is thrown.
+     */
+    private long timeToTimeout() {
+        long now = System.currentTimeMillis();
+        long wait = Long.MAX_VALUE;
+        if (commandTimeout > 0) {
+            long remaining = startTs + commandTimeout - now;
+            if (remaining <= 0) {
+                throw kill("SSH command did not finish in " + commandTimeout + "ms");
+            }
+            wait = remaining;
+        }
+        if (idleTimeout > 0) {
+            long lastActivity = startTs;
+            for (OutputCollector collector : collectors) {
+                lastActivity = Math.max(lastActivity, collector.getLastActivity());
+            }
+            long remaining = lastActivity + idleTimeout - now;
+            if (remaining <= 0) {
+                throw kill("SSH command produced no output for " + idleTimeout + "ms");
+            }
+            wait = Math.min(wait, remaining);
+        }
+        return wait;
+    }
+
+    /**
+     * Kills the command and closes its channel. This also makes the pumps stop.
+     */
+    private OperationTimeoutException kill(String message) {
+        LOG.error("{0} on {1}, killing it", message, connectionDesc);
+        try {
+            signalSender.signal(Signal.KILL);
+        } catch (TransportException e) {
+            LOG.warn("Error sending KILL signal to SSH command on {0}: {1} (ignoring)", connectionDesc, e.getMessage());
+        }
+        closer.run();
+        return new OperationTimeoutException(message);
+    }
+
+    @FunctionalInterface
+    public interface SignalSender {
+        void signal(Signal signal) throws TransportException;
+    }
+}
@@ -15,17 +15,94 @@
  */
 package com.evolveum.polygon.connector.ssh;
 
+import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.common.objects.ScriptContext;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Builds command line from script text and script arguments, according to the argument style.
+ *
+ * Argument style and null value handling are resolved when the processor is created,
+ * processing of a script is just a single pass over the arguments.
+ * The argument style is a name of a standard style (see StandardArgumentEncoder), a name of a style
+ * provided by an ArgumentEncoder registered as a service, or a name of an ArgumentEncoder class.
+ * Variable values are always quoted for the shell of the argument style (see ShellQuoter).
+ * Option values are quoted for the shell of the script language if quoteOptionValues is set,
+ * otherwise they are inserted as they are (so the script may pass several words in one argument).
+ */
 public class CommandProcessor {
 
-    private final SshConfiguration configuration;
+    private static final Log LOG = Log.getLog(CommandProcessor.class);
+
+    private static final int ESTIMATED_ARGUMENT_LENGTH = 32;
+
+    /**
+     * Encoders selected by class name, one instance for each class.
+     */
+    private static final Map<String, ArgumentEncoder> CLASS_ENCODERS = new ConcurrentHashMap<>();
+
+    private final ArgumentEncoder encoder;
+    private final boolean quoteValues;
+    private final boolean nullAsGone;
 
     public CommandProcessor(SshConfiguration configuration) {
-        this.configuration = configuration;
+        this.encoder = getEncoder(configuration.getArgumentStyle());
+        this.quoteValues = configuration.isQuoteOptionValues();
+        this.nullAsGone = isNullAsGone(configuration.getHandleNullValues());
+    }
+
+    static ArgumentEncoder getEncoder(String argumentStyle) {
+        if (argumentStyle == null) {
+            return StandardArgumentEncoder.DASH;
+        }
+        ArgumentEncoder encoder = StandardArgumentEncoder.forStyle(argumentStyle);
+        if (encoder != null) {
+            return encoder;
+        }
+        encoder = ServiceEncoders.ENCODERS.get(argumentStyle);
+        if (encoder != null) {
+            return encoder;
+        }
+        return CLASS_ENCODERS.computeIfAbsent(argumentStyle, CommandProcessor::createEncoder);
+    }
+
+    private static ArgumentEncoder createEncoder(String className) {
+        Class<? extends ArgumentEncoder> encoderClass;
+        try {
+            // Not initialized until it is known to be an encoder
+            encoderClass = Class.forName(className, false, CommandProcessor.class.getClassLoader()).asSubclass(ArgumentEncoder.class);
+        } catch (ClassNotFoundException e) {
+            throw new ConfigurationException("Unknown value of argument style: " + className);
+        } catch (ClassCastException e) {
+            throw new ConfigurationException("Class " + className + " is not an argument encoder");
+        }
+        try {
+            return encoderClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new ConfigurationException("Cannot create argument encoder " + className + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isNullAsGone(String handleNullValues) {
+        if (handleNullValues == null) {
+            return true;
+        }
+        switch (handleNullValues) {
+            case SshConfiguration.HANDLE_NULL_AS_EMPTY_STRING:
+                return false;
+            case SshConfiguration.HANDLE_NULL_AS_GONE:
+                return true;
+            default:
+                throw new ConfigurationException("Unknown value of handleNullValues: " + handleNullValues);
+        }
     }
 
     public String process(ScriptContext scriptCtx) {
@@ -37,103 +114,65 @@ public class CommandProcessor {
         if (arguments == null) {
             return command;
         }
-        if (configuration.getArgumentStyle() == null) {
-            return encodeArgumentsAndCommandToString(command, arguments, "-");
-        }
-        switch (configuration.getArgumentStyle()) {
-            case SshConfiguration.ARGUMENT_STYLE_VARIABLES_BASH:
-                return encodeVariablesAndCommandToString(command, arguments, "", false);
-            case SshConfiguration.ARGUMENT_STYLE_VARIABLES_POWERSHELL:
-                return encodeVariablesAndCommandToString(command, arguments, "$", true);
-            case SshConfiguration.ARGUMENT_STYLE_DASH:
-                return encodeArgumentsAndCommandToString(command, arguments, "-");
-            case SshConfiguration.ARGUMENT_STYLE_SLASH:
-                return encodeArgumentsAndCommandToString(command, arguments, "/");
-            default:
-                throw new ConfigurationException("Unknown value of argument style: "+configuration.getArgumentStyle());
+        ShellQuoter quoter = quoteValues ? ShellQuoter.forLanguage(scriptCtx.getScriptLanguage()) : null;
+        StringBuilder commandLineBuilder = new StringBuilder(command.length() + arguments.size() * ESTIMATED_ARGUMENT_LENGTH);
+        if (!encoder.isArgumentsFirst()) {
+            commandLineBuilder.append(command);
         }
-    }
-
-    private String encodeArgumentsAndCommandToString(String command, Map<String, Object> arguments, String paramPrefix) {
-        StringBuilder commandLineBuilder = new StringBuilder();
-        commandLineBuilder.append(command);
-        for (Map.Entry<String, Object> argEntry: arguments.entrySet()) {
-            if (argEntry.getKey() == null) {
+        Object positional = null;
+        for (Map.Entry<String, Object> argEntry : arguments.entrySet()) {
+            String name = argEntry.getKey();
+            Object value = argEntry.getValue();
+            if (name == null) {
                 // we want this to go last
+                positional = value;
                 continue;
             }
-            Object value = argEntry.getValue();
-            boolean insertAttribute = true;
-            if(value == null) {
-                switch (configuration.getHandleNullValues()) {
-                    case SshConfiguration.HANDLE_NULL_AS_EMPTY_STRING:
-                        value = "";
-                        break;
-                    case SshConfiguration.HANDLE_NULL_AS_GONE:
-                        insertAttribute = false;
-                        break;
-                    default:
-                        throw new ConfigurationException("Unknown value of handleNullValues: " + configuration.getHandleNullValues());
+            if (value == null) {
+                if (nullAsGone) {
+                    continue;
                 }
+                value = "";
             }
-            if(insertAttribute) {
-                commandLineBuilder.append(" ");
-                commandLineBuilder.append(paramPrefix).append(argEntry.getKey());
-                commandLineBuilder.append(" ");
-                commandLineBuilder.append(value);
-            }
+            encoder.appendName(commandLineBuilder, name, quoteValues);
+            encoder.appendValue(commandLineBuilder, value, quoter);
+        }
+        if (encoder.isArgumentsFirst()) {
+            commandLineBuilder.append(command);
         }
-        if (arguments.get(null) != null) {
-            commandLineBuilder.append(" ");
-            commandLineBuilder.append(arguments.get(null));
+        if (positional != null) {
+            commandLineBuilder.append(' ').append(positional);
         }
         return commandLineBuilder.toString();
     }
 
-    private String encodeVariablesAndCommandToString(String command, Map<String, Object> arguments, String variablePrefix, boolean spaces) {
-        if (arguments == null) {
-            return command;
-        }
-        StringBuilder commandLineBuilder = new StringBuilder();
-        for (Map.Entry<String, Object> argEntry: arguments.entrySet()) {
-            if (argEntry.getKey() == null) {
-                // we want this to go last
-                continue;
-            }
-            Object value = argEntry.getValue();
-            boolean insertAttribute = true;
-            if(value == null) {
-                switch (configuration.getHandleNullValues()) {
-                    case SshConfiguration.HANDLE_NULL_AS_EMPTY_STRING:
-                        value = "";
-                        break;
-                    case SshConfiguration.HANDLE_NULL_AS_GONE:
-                        insertAttribute = false;
+    /**
+     * Encoders registered as services, indexed by style. Loaded when first needed.
+     */
+    private static final class ServiceEncoders {
+
+        private static final Map<String, ArgumentEncoder> ENCODERS = load();
+
+        private static Map<String, ArgumentEncoder> load() {
+            Map<String, ArgumentEncoder> encoders = new HashMap<>();
+            Iterator<ArgumentEncoder> iterator =
+                    ServiceLoader.load(ArgumentEncoder.class, CommandProcessor.class.getClassLoader()).iterator();
+            while (true) {
+                try {
+                    if (!iterator.hasNext()) {
                         break;
-                    default:
-                        throw new ConfigurationException("Unknown value of handleNullValues: " + configuration.getHandleNullValues());
+                    }
+                    ArgumentEncoder encoder = iterator.next();
+                    ArgumentEncoder previous = encoders.putIfAbsent(encoder.getStyle(), encoder);
+                    if (previous != null) {
+                        LOG.warn("Argument style {0} provided by both {1} and {2}, using the first one",
+                                encoder.getStyle(), previous.getClass().getName(), encoder.getClass().getName());
+                    }
+                } catch (ServiceConfigurationError e) {
+                    LOG.warn("Cannot load argument encoder: {0} (ignoring)", e.getMessage());
                 }
             }
-            if(insertAttribute) {
-                commandLineBuilder.append(variablePrefix).append(argEntry.getKey());
-                if (spaces) {
-                    commandLineBuilder.append(" = ");
-                } else {
-                    commandLineBuilder.append("=");
-                }
-                commandLineBuilder.append(quoteSingle(value));
-                commandLineBuilder.append("; ");
-            }
-        }
-        commandLineBuilder.append(command);
-        if (arguments.get(null) != null) {
-            commandLineBuilder.append(" ");
-            commandLineBuilder.append(arguments.get(null));
+            return Collections.unmodifiableMap(encoders);
         }
-        return commandLineBuilder.toString();
-    }
-
-    private String quoteSingle(Object value) {
-        return "'" + value.toString().replaceAll("'", "''") + "'";
     }
 }
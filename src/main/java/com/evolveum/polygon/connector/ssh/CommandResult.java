@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+/**
+ * Result of a single command: its output, error output and exit status.
+ *
+ * @author semancik
+ */
+public class CommandResult {
+
+    /*
+     * Keys of the map returned by script execution in "structured" result mode.
+     */
+
+    /**
+     * Whether the script succeeded according to the error detection policy (Boolean).
+     */
+    public static final String KEY_SUCCESS = "success";
+
+    /**
+     * Exit status of the script (Integer), null if the server has not provided it.
+     */
+    public static final String KEY_EXIT_STATUS = "exitStatus";
+
+    /**
+     * Name of the signal that terminated the script (String, e.g. "KILL"), null if the script was not terminated by a signal.
+     */
+    public static final String KEY_EXIT_SIGNAL = "exitSignal";
+
+    /**
+     * Standard output of the script (String), null if the output was spooled.
+     */
+    public static final String KEY_STDOUT = "stdout";
+
+    /**
+     * Absolute path of the file with the standard output (String), present only if the output was spooled.
+     * The caller owns the file and it is responsible for deleting it.
+     */
+    public static final String KEY_STDOUT_FILE = "stdoutFile";
+
+    /**
+     * Error output of the script (String), truncated to maximum error output size.
+     */
+    public static final String KEY_STDERR = "stderr";
+
+    /**
+     * Size of the whole standard output in bytes (Long), including the part that was truncated.
+     */
+    public static final String KEY_STDOUT_BYTES = "stdoutBytes";
+
+    /**
+     * Size of the whole error output in bytes (Long), including the part that was truncated.
+     */
+    public static final String KEY_STDERR_BYTES = "stderrBytes";
+
+    /**
+     * Whether the standard output was truncated (Boolean).
+     */
+    public static final String KEY_TRUNCATED = "truncated";
+
+    /**
+     * Durations of the phases of the script execution in milliseconds (map of Double values).
+     * The keys are lowercase phase names (see SshMetrics.Phase), only the phases that took place are present.
+     * There is always the total duration of the script execution.
+     */
+    public static final String KEY_DURATIONS = "durations";
+
+    public static final String KEY_TOTAL = "total";
+
+    /*
+     * Keys of per-host results of fan-out script execution (see hostGroups configuration property).
+     * Success is under KEY_SUCCESS key.
+     */
+
+    /**
+     * Result of the script on the host, as it would be returned by execution on a single host
+     * (output or structured result, according to the result mode). Missing if the script failed with an exception.
+     */
+    public static final String KEY_RESULT = "result";
+
+    /**
+     * Error message (String) if the script could not be executed on the host or if it failed.
+     */
+    public static final String KEY_ERROR = "error";
+
+    /**
+     * Duration of the script execution on the host in milliseconds (Double), including establishing of the connection.
+     */
+    public static final String KEY_DURATION = "duration";
+
+    private final String output;
+    private final String error;
+    private final Integer exitStatus;
+    private final long outputBytes;
+    private final long errorBytes;
+    private final boolean truncated;
+
+    public CommandResult(String output, String error, Integer exitStatus, long outputBytes, long errorBytes, boolean truncated) {
+        this.output = output;
+        this.error = error;
+        this.exitStatus = exitStatus;
+        this.outputBytes = outputBytes;
+        this.errorBytes = errorBytes;
+        this.truncated = truncated;
+    }
+
+    /**
+     * Standard output of the command.
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * Error output of the command.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Exit status of the command. May be null if the server has not provided it.
+     */
+    public Integer getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * Size of the whole standard output in bytes, including the part that was truncated.
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Size of the whole error output in bytes, including the part that was truncated.
+     */
+    public long getErrorBytes() {
+        return errorBytes;
+    }
+
+    /**
+     * Whether the standard output was truncated to maximum output size.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandResult(exitStatus=" + exitStatus + ", output " + outputBytes + " bytes, error " + errorBytes + " bytes"
+                + (truncated ? ", truncated" : "") + ")";
+    }
+}
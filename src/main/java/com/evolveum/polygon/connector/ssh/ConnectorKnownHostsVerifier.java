@@ -16,21 +16,51 @@
 package com.evolveum.polygon.connector.ssh;
 
 import net.schmizz.sshj.common.KeyType;
+import net.schmizz.sshj.common.SecurityUtils;
 import net.schmizz.sshj.transport.verification.HostKeyVerifier;
 import net.schmizz.sshj.transport.verification.OpenSSHKnownHosts;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
 import java.io.StringReader;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Verifies host keys using known_hosts entries from connector configuration.
+ *
+ * The entries are indexed, so the verification does not need to go through all of them.
+ * Entries with plain host names are indexed by the host names.
+ * Other entries (hashed host names, wildcards, negations) can only be matched by computing HMAC or evaluating the pattern.
+ * They are indexed by fingerprint of their key, as an entry can only verify the key that it contains.
+ * The verdicts are cached, so repeated connections to the same host do not need to evaluate the entries at all.
+ */
 public class ConnectorKnownHostsVerifier implements HostKeyVerifier  {
+
+    private static final int MAX_VERDICT_CACHE_SIZE = 1000;
+
     private final List<OpenSSHKnownHosts.KnownHostEntry> entries = new ArrayList<>();
 
+    /**
+     * Entries with plain host names (no hashing or patterns), by host name.
+     */
+    private final Map<String, List<OpenSSHKnownHosts.KnownHostEntry>> entriesByHost = new HashMap<>();
+
+    /**
+     * Entries that cannot be indexed by host name, by fingerprint of their key.
+     */
+    private final Map<String, List<OpenSSHKnownHosts.KnownHostEntry>> entriesByFingerprint = new HashMap<>();
+
+    /**
+     * Verdicts by host, port and key fingerprint.
+     */
+    private final Map<String, Boolean> verdicts = new ConcurrentHashMap<>();
+
     public ConnectorKnownHostsVerifier parse(final String[] knownHosts) {
         if (knownHosts == null) {
             return this;
@@ -41,16 +71,51 @@ public class ConnectorKnownHostsVerifier implements HostKeyVerifier  {
                 for ( OpenSSHKnownHosts.KnownHostEntry entry : hosts.entries() ) {
                     if (entry != null) {
                         entries.add(entry);
+                        index(entry);
                     }
                 }
             } catch (IOException e) {
                 throw new ConfigurationException("Error parsing known hosts entry "+knownHost+": "+e.getMessage(), e);
             }
         }
+        verdicts.clear();
 
         return this;
     }
 
+    private void index(OpenSSHKnownHosts.KnownHostEntry entry) {
+        if (entry.getType() == null || entry.getType() == KeyType.UNKNOWN) {
+            // Comments and unparseable lines, they never verify any key
+            return;
+        }
+        List<String> hostNames = getPlainHostNames(entry);
+        if (hostNames != null) {
+            for (String hostName : hostNames) {
+                entriesByHost.computeIfAbsent(hostName, k -> new ArrayList<>()).add(entry);
+            }
+        } else {
+            entriesByFingerprint.computeIfAbsent(entry.getFingerprint(), k -> new ArrayList<>()).add(entry);
+        }
+    }
+
+    /**
+     * Returns host names of the entry, or null if the entry has hashed host name or host name patterns.
+     */
+    private List<String> getPlainHostNames(OpenSSHKnownHosts.KnownHostEntry entry) {
+        String[] fields = entry.getLine().trim().split("\\s+");
+        String hostPart = fields[0].startsWith("@") && fields.length > 1 ? fields[1] : fields[0];
+        if (hostPart.isEmpty() || hostPart.startsWith("|")) {
+            return null;
+        }
+        List<String> hostNames = new ArrayList<>();
+        for (String hostName : hostPart.split(",")) {
+            if (hostName.isEmpty() || hostName.startsWith("!") || hostName.indexOf('*') >= 0 || hostName.indexOf('?') >= 0) {
+                return null;
+            }
+            hostNames.add(hostName);
+        }
+        return hostNames;
+    }
 
     @Override
     public boolean verify(String hostname, int port, PublicKey key) {
@@ -63,7 +128,22 @@ public class ConnectorKnownHostsVerifier implements HostKeyVerifier  {
             return false;
         }
 
-        for (OpenSSHKnownHosts.KnownHostEntry entry : entries) {
+        final String fingerprint = SecurityUtils.getFingerprint(key);
+        final String verdictKey = hostname + ":" + port + " " + fingerprint;
+        Boolean verdict = verdicts.get(verdictKey);
+        if (verdict == null) {
+            verdict = verify(entriesByHost.getOrDefault(hostname, Collections.emptyList()), type, hostname, key)
+                    || verify(entriesByFingerprint.getOrDefault(fingerprint, Collections.emptyList()), type, hostname, key);
+            if (verdicts.size() >= MAX_VERDICT_CACHE_SIZE) {
+                verdicts.clear();
+            }
+            verdicts.put(verdictKey, verdict);
+        }
+        return verdict;
+    }
+
+    private boolean verify(List<OpenSSHKnownHosts.KnownHostEntry> candidates, KeyType type, String hostname, PublicKey key) {
+        for (OpenSSHKnownHosts.KnownHostEntry entry : candidates) {
             try {
                 if (entry.appliesTo(type, hostname) && entry.verify(key)) {
                     return true;
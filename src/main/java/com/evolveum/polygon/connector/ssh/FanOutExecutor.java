@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the same script on several hosts in parallel and collects per-host results.
+ *
+ * The tasks run in SshExecutionEngine as operation tasks. Number of tasks running at the same time is limited by the caller
+ * for each execution.
+ *
+ * @author semancik
+ */
+public class FanOutExecutor {
+
+    /**
+     * Runs the tasks, at most parallelism of them at the same time. Returns the results by host, in the order of tasks.
+     * The tasks must not throw an exception, the failure is reported in the result (see CommandResult.KEY_SUCCESS).
+     *
+     * In fail-fast mode no other task is started after the first failed one. The tasks that are already running
+     * are finished (the script may be half-way through, it cannot be safely stopped), then the exception is thrown.
+     *
+     * If the task cannot be started at all, it is reported as a failure of its host.
+     */
+    public static Map<String, Map<String, Object>> execute(Map<String, Supplier<Map<String, Object>>> tasks, int parallelism, boolean failFast) {
+        return execute(tasks, parallelism, failFast, SshExecutionEngine::submitOperation);
+    }
+
+    static Map<String, Map<String, Object>> execute(Map<String, Supplier<Map<String, Object>>> tasks, int parallelism, boolean failFast,
+            Function<Callable<Map<String, Object>>, Future<Map<String, Object>>> submitter) {
+        Semaphore permits = new Semaphore(Math.max(parallelism, 1));
+        AtomicBoolean failed = new AtomicBoolean();
+        Map<String, Future<Map<String, Object>>> futures = new LinkedHashMap<>();
+        List<String> skipped = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Supplier<Map<String, Object>>> task : tasks.entrySet()) {
+                permits.acquire();
+                if (failFast && failed.get()) {
+                    permits.release();
+                    skipped.add(task.getKey());
+                    continue;
+                }
+                Future<Map<String, Object>> future;
+                try {
+                    future = submitter.apply(() -> {
+                        try {
+                            Map<String, Object> result = task.getValue().get();
+                            if (!Boolean.TRUE.equals(result.get(CommandResult.KEY_SUCCESS))) {
+                                failed.set(true);
+                            }
+                            return result;
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // The task was not started, the tasks that were started are collected below
+                    permits.release();
+                    failed.set(true);
+                    future = CompletableFuture.completedFuture(notStarted(e));
+                }
+                futures.put(task.getKey(), future);
+            }
+            Map<String, Map<String, Object>> results = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<Map<String, Object>>> future : futures.entrySet()) {
+                results.put(future.getKey(), future.getValue().get());
+            }
+            if (failFast && failed.get()) {
+                throw failFastException(results, skipped);
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Running scripts are not interrupted, their connections would be left in unknown state
+            throw new ConnectorException("Interrupted while waiting for fan-out script on " + futures.size() + " hosts", e);
+        } catch (ExecutionException e) {
+            // Should not happen, tasks report failures in their results
+            throw new ConnectorException("Fan-out script failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static Map<String, Object> notStarted(RuntimeException e) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(CommandResult.KEY_SUCCESS, false);
+        result.put(CommandResult.KEY_ERROR, "Script not started: " + e.getMessage());
+        result.put(CommandResult.KEY_DURATION, 0.0);
+        return result;
+    }
+
+    private static ConnectorException failFastException(Map<String, Map<String, Object>> results, List<String> skipped) {
+        StringBuilder sb = new StringBuilder("Fan-out script failed on ");
+        int succeeded = 0;
+        boolean first = true;
+        for (Map.Entry<String, Map<String, Object>> result : results.entrySet()) {
+            if (Boolean.TRUE.equals(result.getValue().get(CommandResult.KEY_SUCCESS))) {
+                succeeded++;
+                continue;
+            }
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(result.getKey());
+            Object error = result.getValue().get(CommandResult.KEY_ERROR);
+            if (error != null) {
+                sb.append(" (").append(error).append(')');
+            }
+        }
+        sb.append("; succeeded on ").append(succeeded).append(" hosts, not started on ").append(skipped.size()).append(" hosts");
+        if (!skipped.isEmpty()) {
+            sb.append(": ").append(String.join(", ", skipped));
+        }
+        return new ConnectorException(sb.toString());
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import java.util.List;
+
+/**
+ * Chooses the target host when the connector connects to one of several equivalent hosts.
+ *
+ * Standard strategies are implemented by StandardHostSelectionStrategy. Other strategies may be selected
+ * by the class name in hostSelectionStrategy configuration property.
+ *
+ * Strategy is used by all connector instances at once, it must be thread-safe.
+ *
+ * @author semancik
+ */
+public interface HostSelectionStrategy {
+
+    /**
+     * Returns the hosts in the order in which the connection should be attempted.
+     * The connector tries the next host if it cannot connect to the previous one.
+     * Hosts that are not healthy (see SshHost.isHealthy) are moved to the end of the list by the connector.
+     * The returned list may be the same list as the argument, the argument must not be modified.
+     */
+    List<SshHost> order(List<SshHost> hosts);
+}
@@ -25,6 +25,11 @@ public class OperationLog {
 
     static final Log LOG = Log.getLog(OperationLog.class);
 
+    /**
+     * Separate logger for slow scripts, so it can be routed (or silenced) independently of the operation log.
+     */
+    static final Log SLOW_LOG = Log.getLog(SlowScriptLog.class);
+
     public static void log(String format, Object... params) {
         LOG.info(format, params);
     }
@@ -37,4 +42,37 @@ public class OperationLog {
         return LOG.isInfo();
     }
 
+    /**
+     * Logs script that took longer than the threshold.
+     */
+    public static void slow(String connectionDesc, String language, long durationMillis, boolean success, String scriptText) {
+        SLOW_LOG.warn("{0} Slow script {1} ({2}, {3} ms): {4}", connectionDesc, language,
+                success ? "success" : "failure", durationMillis, scriptText);
+    }
+
+    /**
+     * Shortens script text or output for a log message.
+     * Zero or negative maxLength means that the text itself is not logged at all, only its length.
+     */
+    public static String abbreviate(String text, int maxLength) {
+        if (text == null) {
+            return null;
+        }
+        if (maxLength <= 0) {
+            return "(" + text.length() + " chars)";
+        }
+        if (text.length() <= maxLength) {
+            return text;
+        }
+        return text.substring(0, maxLength) + "... (" + text.length() + " chars)";
+    }
+
+    /**
+     * Marker class, only the name is used (as logger name).
+     */
+    static final class SlowScriptLog {
+        private SlowScriptLog() {
+        }
+    }
+
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Future;
+
+/**
+ * Collects output of a command, keeping at most maxSize bytes in memory.
+ * The output that goes over the limit is either discarded (truncate)
+ * or the whole output is spooled to a temporary file (spool).
+ *
+ * The spool file is owned by the collector until it is handed over by getResult() or getSpoolFile().
+ * The receiver of the file is responsible for deleting it, the connector does not keep track of it.
+ * Output that is not going to be returned must be discarded, which deletes the spool file.
+ *
+ * @author semancik
+ */
+public class OutputCollector extends OutputStream {
+
+    private static final Log LOG = Log.getLog(OutputCollector.class);
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final int maxSize;
+    private final boolean spool;
+    private final Buffer buffer = new Buffer();
+
+    private long totalBytes = 0;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private File spoolFile = null;
+    private OutputStream spoolStream = null;
+    private boolean discarded = false;
+
+    /**
+     * @param maxSize maximum number of bytes kept in memory, zero or negative value means no limit
+     * @param spool whether to spool the output to a file when the limit is reached (instead of truncating it)
+     */
+    public OutputCollector(int maxSize, boolean spool) {
+        this.maxSize = maxSize;
+        this.spool = spool;
+    }
+
+    /**
+     * Reads the stream to the end, chunk by chunk.
+     */
+    public void pump(InputStream in) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            write(chunk, 0, read);
+        }
+        flush();
+    }
+
+    /**
+     * Reads the stream to the end in a background thread.
+     * The collector must not be used until the returned future is done.
+     */
+    public Future<Void> pumpAsync(InputStream in) {
+        return SshExecutionEngine.submit(() -> {
+            pump(in);
+            return null;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (discarded) {
+            // E.g. pump of a timed out command that is still running
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        totalBytes += len;
+        if (spoolStream != null) {
+            spoolStream.write(b, off, len);
+            return;
+        }
+        if (maxSize <= 0 || buffer.size() + len <= maxSize) {
+            buffer.write(b, off, len);
+            return;
+        }
+        if (spool) {
+            startSpooling();
+            spoolStream.write(b, off, len);
+        } else {
+            int remaining = maxSize - buffer.size();
+            if (remaining > 0) {
+                buffer.write(b, off, remaining);
+            }
+        }
+    }
+
+    private void startSpooling() throws IOException {
+        // No deleteOnExit(): its registry would grow for the whole life of the JVM. The file is deleted by discard()
+        // or by the receiver of the result.
+        spoolFile = File.createTempFile("connector-ssh-", ".out");
+        LOG.ok("Output exceeds {0} bytes, spooling it to {1}", maxSize, spoolFile);
+        spoolStream = new BufferedOutputStream(new FileOutputStream(spoolFile));
+        buffer.writeTo(spoolStream);
+        buffer.reset();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (spoolStream != null) {
+            spoolStream.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spoolStream != null) {
+            spoolStream.close();
+        }
+    }
+
+    /**
+     * Total number of bytes written to the collector, including the bytes that were discarded.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Time (in milliseconds) when the collector received data last time, or when it was created.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public boolean isTruncated() {
+        return spoolFile == null && totalBytes > buffer.size();
+    }
+
+    public boolean isSpooled() {
+        return spoolFile != null;
+    }
+
+    /**
+     * File with the spooled output, null if the output was not spooled.
+     */
+    public File getSpoolFile() {
+        return spoolFile;
+    }
+
+    /**
+     * Returns the output: file with the output if it was spooled, string otherwise.
+     * The caller takes over the spool file and it has to delete it.
+     */
+    public Object getResult() {
+        if (spoolFile != null) {
+            return spoolFile;
+        }
+        return toString();
+    }
+
+    /**
+     * Deletes the spool file (if any). Used when the output is not going to be returned, e.g. when the command
+     * failed or timed out. Any data written to the collector later are ignored.
+     */
+    public synchronized void discard() {
+        discarded = true;
+        try {
+            close();
+        } catch (IOException e) {
+            LOG.warn("Error closing spool file {0}: {1} (ignoring)", spoolFile, e.getMessage());
+        }
+        if (spoolFile != null && !spoolFile.delete()) {
+            LOG.warn("Cannot delete spool file {0} (ignoring)", spoolFile);
+        }
+    }
+
+    /**
+     * Returns the output kept in memory, decoded using the default charset.
+     * For spooled output this is a short description of the spool file.
+     */
+    @Override
+    public String toString() {
+        if (spoolFile != null) {
+            return "(" + totalBytes + " bytes spooled to " + spoolFile + ")";
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Returns beginning of the output for log messages. Only the beginning is decoded, even for large outputs.
+     * Zero or negative maxLength means that the output itself is not returned at all, only its size.
+     */
+    public String toString(int maxLength) {
+        if (spoolFile != null) {
+            return toString();
+        }
+        if (maxLength <= 0) {
+            return "(" + totalBytes + " bytes)";
+        }
+        if (totalBytes <= maxLength) {
+            return buffer.toString();
+        }
+        return buffer.prefix(maxLength) + "... (" + totalBytes + " bytes)";
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        private synchronized String prefix(int maxLength) {
+            return new String(buf, 0, Math.min(count, maxLength), Charset.defaultCharset());
+        }
+    }
+}
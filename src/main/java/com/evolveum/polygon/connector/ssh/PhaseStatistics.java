@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+/**
+ * Snapshot of statistics of one operation phase for one host and script language.
+ * Percentiles are estimated from a histogram with power-of-two buckets, therefore they are upper bounds
+ * that may be up to two times higher than the real values.
+ *
+ * @author semancik
+ */
+public class PhaseStatistics {
+
+    private final String host;
+    private final String language;
+    private final String phase;
+    private final long count;
+    private final long failures;
+    private final double totalMillis;
+    private final double maxMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final long bytesSent;
+    private final long bytesReceived;
+
+    PhaseStatistics(String host, String language, String phase, long count, long failures,
+            double totalMillis, double maxMillis, double p50Millis, double p90Millis, double p99Millis,
+            long bytesSent, long bytesReceived) {
+        this.host = host;
+        this.language = language;
+        this.phase = phase;
+        this.count = count;
+        this.failures = failures;
+        this.totalMillis = totalMillis;
+        this.maxMillis = maxMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Script language. Empty for phases that are not related to a particular script (connect, kex, auth).
+     */
+    public String getLanguage() {
+        return language;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public double getTotalMillis() {
+        return totalMillis;
+    }
+
+    public double getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    /**
+     * Size of the scripts sent to the host. Recorded for the exec phase only.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Size of the output received from the host. Recorded for the exec phase only.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s: count=%d failures=%d mean=%.2fms p50<=%.2fms p90<=%.2fms p99<=%.2fms max=%.2fms sent=%d received=%d",
+                host, language.isEmpty() ? "-" : language, phase, count, failures, getMeanMillis(),
+                p50Millis, p90Millis, p99Millis, maxMillis, bytesSent, bytesReceived);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Quoting of values for a particular shell, so the shell passes the value to the command exactly as it is.
+ * Whatever the value contains, it cannot end the quoted string, start another command or expand variables.
+ *
+ * @author semancik
+ */
+public enum ShellQuoter {
+
+    /**
+     * POSIX shells (sh, bash, zsh, ...). The value is enclosed in single quotes, nothing is special inside them.
+     * Single quote itself is written as '\'' (end quoted string, escaped quote, start quoted string again).
+     */
+    POSIX {
+        @Override
+        public void quote(StringBuilder sb, String value) {
+            sb.append('\'');
+            int start = 0;
+            int quote;
+            while ((quote = value.indexOf('\'', start)) >= 0) {
+                sb.append(value, start, quote).append("'\\''");
+                start = quote + 1;
+            }
+            sb.append(value, start, value.length()).append('\'');
+        }
+    },
+
+    /**
+     * PowerShell. The value is enclosed in single quotes (verbatim string).
+     * PowerShell also accepts typographic single quotes as quotes, all of them are doubled inside the string.
+     */
+    POWERSHELL {
+        @Override
+        public void quote(StringBuilder sb, String value) {
+            sb.append('\'');
+            int start = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (isPowerShellQuote(c)) {
+                    sb.append(value, start, i + 1).append(c);
+                    start = i + 1;
+                }
+            }
+            sb.append(value, start, value.length()).append('\'');
+        }
+    },
+
+    /**
+     * Windows cmd.exe running a program that parses its command line by the usual Microsoft C runtime rules.
+     * The value is enclosed in double quotes (with backslashes and double quotes escaped for the C runtime),
+     * then all the characters that are special to cmd.exe are escaped by caret. Caret-escaped percent sign
+     * is not expanded as variable. Line breaks cannot be passed on cmd.exe command line at all.
+     */
+    CMD {
+        @Override
+        public void quote(StringBuilder sb, String value) {
+            appendCmdEscaped(sb, '"');
+            int backslashes = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    backslashes++;
+                    continue;
+                }
+                if (c == '\r' || c == '\n') {
+                    throw new ConnectorException("Line breaks cannot be passed in cmd.exe command line arguments");
+                }
+                if (c == '"') {
+                    // Backslashes before a quote are escapes, double them, then escape the quote itself
+                    appendBackslashes(sb, backslashes * 2 + 1);
+                } else {
+                    appendBackslashes(sb, backslashes);
+                }
+                backslashes = 0;
+                appendCmdEscaped(sb, c);
+            }
+            // Backslashes before the closing quote must be doubled
+            appendBackslashes(sb, backslashes * 2);
+            appendCmdEscaped(sb, '"');
+        }
+    };
+
+    /**
+     * Appends the value to the command line, quoted for this shell.
+     */
+    public abstract void quote(StringBuilder sb, String value);
+
+    public String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        quote(sb, value);
+        return sb.toString();
+    }
+
+    /**
+     * Quoting of values for the script language.
+     * The language values are the same as used for remote shell selection ("sh", "bash", "cmd", "powershell").
+     */
+    public static ShellQuoter forLanguage(String scriptLanguage) {
+        if (scriptLanguage != null) {
+            String language = scriptLanguage.toLowerCase();
+            if (language.startsWith("powershell")) {
+                return POWERSHELL;
+            }
+            if (language.equals("cmd")) {
+                return CMD;
+            }
+        }
+        return POSIX;
+    }
+
+    /**
+     * Checks that the name can be safely used as variable or option name.
+     * Names are inserted into the command line as they are, therefore only letters, digits, underscore
+     * and dash (not at the beginning, not in variable names) are allowed.
+     */
+    public static void checkName(String name, boolean variable) {
+        boolean valid = !name.isEmpty();
+        for (int i = 0; valid && i < name.length(); i++) {
+            char c = name.charAt(i);
+            valid = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_'
+                    || i > 0 && (c >= '0' && c <= '9' || !variable && c == '-');
+        }
+        if (!valid) {
+            throw new ConnectorException("Invalid " + (variable ? "variable" : "option") + " name '" + name
+                    + "', only letters, digits" + (variable ? "" : ", dash") + " and underscore are allowed");
+        }
+    }
+
+    private static boolean isPowerShellQuote(char c) {
+        return c == '\'' || c == '\u2018' || c == '\u2019' || c == '\u201A' || c == '\u201B';
+    }
+
+    private static void appendCmdEscaped(StringBuilder sb, char c) {
+        switch (c) {
+            case '(': case ')': case '%': case '!': case '^': case '"': case '<': case '>': case '&': case '|':
+                sb.append('^');
+                break;
+            default:
+                break;
+        }
+        sb.append(c);
+    }
+
+    private static void appendBackslashes(StringBuilder sb, int count) {
+        for (int i = 0; i < count; i++) {
+            sb.append('\\');
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.Channel;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.transport.TransportException;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Remote shell that executes several commands, one after another.
+ *
+ * The commands are written to standard input of the shell.
+ * Each command is followed by a statement that prints a sentinel line to both standard output and error output.
+ * The sentinel contains random token, therefore it can be safely told apart from the command output.
+ * Sentinel on standard output also carries exit status of the command.
+ *
+ * @author semancik
+ */
+public class ShellSession {
+
+    private static final Log LOG = Log.getLog(ShellSession.class);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Channel channel;
+    private final CommandMonitor.SignalSender signalSender;
+    private final Dialect dialect;
+    private final SshConfiguration configuration;
+    private final String connectionDesc;
+    private final Charset charset = Charset.defaultCharset();
+
+    private final OutputStream input;
+    private final SentinelReader outputReader;
+    private final SentinelReader errorReader;
+
+    private ShellSession(Channel channel, CommandMonitor.SignalSender signalSender, Dialect dialect,
+            SshConfiguration configuration, String connectionDesc) {
+        this.channel = channel;
+        this.signalSender = signalSender;
+        this.dialect = dialect;
+        this.configuration = configuration;
+        this.connectionDesc = connectionDesc;
+        this.input = channel.getOutputStream();
+        this.outputReader = new SentinelReader(channel.getInputStream());
+        this.errorReader = new SentinelReader(getErrorStream(channel));
+    }
+
+    private static InputStream getErrorStream(Channel channel) {
+        if (channel instanceof Session.Command) {
+            return ((Session.Command) channel).getErrorStream();
+        }
+        return ((Session.Shell) channel).getErrorStream();
+    }
+
+    /**
+     * Starts the shell in the session. The session cannot be used for anything else.
+     */
+    public static ShellSession start(Session session, Dialect dialect, SshConfiguration configuration, String connectionDesc) {
+        ShellSession shellSession;
+        try {
+            if (dialect.getShellCommand() == null) {
+                Session.Shell shell = session.startShell();
+                shellSession = new ShellSession(shell, shell::signal, dialect, configuration, connectionDesc);
+            } else {
+                Session.Command cmd = session.exec(dialect.getShellCommand());
+                shellSession = new ShellSession(cmd, cmd::signal, dialect, configuration, connectionDesc);
+            }
+        } catch (ConnectionException | TransportException e) {
+            throw new ConnectorIOException("Network error while starting remote shell: " + e.getMessage(), e);
+        }
+        // Skip anything that the shell may print when it starts (e.g. output of startup scripts)
+        shellSession.execute(dialect.getNoOpCommand());
+        return shellSession;
+    }
+
+    /**
+     * Executes single command in the shell and waits for its result.
+     */
+    public CommandResult execute(String command) {
+        String token = newToken();
+        try {
+            write(dialect.wrap(command, token));
+            return readResult(token);
+        } catch (IOException e) {
+            throw new ConnectorIOException("Error communicating with remote shell: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Executes several commands in the shell. All the commands are sent to the shell at once,
+     * the results are read as the commands finish.
+     */
+    public List<CommandResult> executeBatch(List<String> commands) {
+        List<String> tokens = new ArrayList<>(commands.size());
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            String token = newToken();
+            tokens.add(token);
+            script.append(dialect.wrap(command, token));
+        }
+        // Written in background, as the shell may block writing the output of first commands
+        // while we would be still writing the next commands.
+        Future<Void> writer = SshExecutionEngine.submit(() -> {
+            write(script.toString());
+            return null;
+        });
+        List<CommandResult> results = new ArrayList<>(commands.size());
+        try {
+            for (String token : tokens) {
+                results.add(readResult(token));
+            }
+            new CommandMonitor(configuration, connectionDesc, signalSender, this::abort).await(writer);
+        } catch (IOException e) {
+            throw new ConnectorIOException("Error communicating with remote shell: " + e.getMessage(), e);
+        } finally {
+            writer.cancel(true);
+        }
+        return results;
+    }
+
+    private void write(String text) throws IOException {
+        input.write(text.getBytes(charset));
+        input.flush();
+    }
+
+    private CommandResult readResult(String token) throws IOException {
+        OutputCollector output = new OutputCollector(configuration.getMaxOutputSize(), false);
+        OutputCollector error = new OutputCollector(configuration.getMaxErrorOutputSize(), false);
+        CommandMonitor monitor = new CommandMonitor(configuration, connectionDesc, signalSender, this::abort, output, error);
+        // Standard output is read in this thread, only error output needs another thread
+        Future<String> errorSentinel = SshExecutionEngine.submit(() -> errorReader.readUntilSentinel(token, error));
+        String exitStatus;
+        try {
+            exitStatus = monitor.run(() -> outputReader.readUntilSentinel(token, output));
+        } catch (IOException | RuntimeException e) {
+            errorSentinel.cancel(true);
+            throw e;
+        }
+        monitor.await(errorSentinel);
+        if (exitStatus == null) {
+            throw new ConnectorIOException("Remote shell on " + connectionDesc + " terminated unexpectedly");
+        }
+        Integer status;
+        try {
+            status = Integer.valueOf(exitStatus);
+        } catch (NumberFormatException e) {
+            LOG.warn("Cannot parse exit status ''{0}'' of command executed in remote shell on {1}", exitStatus, connectionDesc);
+            status = null;
+        }
+        return new CommandResult(output.toString(), error.toString(), status, output.getTotalBytes(), error.getTotalBytes(),
+                output.isTruncated());
+    }
+
+    /**
+     * Tells the shell that there are no more commands. The shell should exit.
+     */
+    public void close() {
+        try {
+            input.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing remote shell input on {0}: {1} (ignoring)", connectionDesc, e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the shell channel immediately, e.g. when a command timed out.
+     */
+    public void abort() {
+        try {
+            channel.close();
+        } catch (ConnectionException | TransportException e) {
+            LOG.warn("Error closing remote shell on {0}: {1} (ignoring)", connectionDesc, e.getMessage());
+        }
+    }
+
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen() && !channel.isEOF();
+    }
+
+    private static String newToken() {
+        return "SSHCONN" + Long.toHexString(RANDOM.nextLong() & Long.MAX_VALUE) + Long.toHexString(RANDOM.nextLong() & Long.MAX_VALUE);
+    }
+
+    /**
+     * Shell dialect, determines how the commands and sentinels are formatted.
+     */
+    public enum Dialect {
+
+        /**
+         * Bourne-like shells (sh, bash, ...). Commands are executed in the login shell of the user.
+         * Each command runs in a subshell, so it cannot change the state (variables, working directory) of the shell.
+         * Standard input of each command is redirected, so the command cannot consume the commands that follow it.
+         */
+        POSIX(null, ":") {
+            @Override
+            String wrap(String command, String token) {
+                return "( " + command + "\n) </dev/null\n"
+                        + "printf '\\n%s:%s\\n' '" + token + "' \"$?\"; printf '\\n%s:0\\n' '" + token + "' >&2\n";
+            }
+        },
+
+        /**
+         * Windows PowerShell. The shell reads commands from its standard input line by line,
+         * therefore each command must fit on a single line.
+         * Each command runs in its own script block, so its variables do not leak to the following commands.
+         */
+        POWERSHELL("powershell -NoLogo -NoProfile -NonInteractive -Command -", "$null") {
+            @Override
+            String wrap(String command, String token) {
+                // PowerShell reading commands from standard input executes them line by line,
+                // multi-line command would be executed before the sentinel and the shell would wait for the rest.
+                if (command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0) {
+                    throw new ConnectorException("PowerShell command executed in remote shell must be single-line");
+                }
+                return "$global:LASTEXITCODE = $null; & { " + command + " }; $sshOk = $?; "
+                        + "$sshRc = if ($LASTEXITCODE -ne $null) { $LASTEXITCODE } elseif ($sshOk) { 0 } else { 1 }; "
+                        + "Write-Output \"`n" + token + ":$sshRc\"; [Console]::Error.WriteLine(\"`n" + token + ":0\")\n";
+            }
+        };
+
+        private final String shellCommand;
+        private final String noOpCommand;
+
+        Dialect(String shellCommand, String noOpCommand) {
+            this.shellCommand = shellCommand;
+            this.noOpCommand = noOpCommand;
+        }
+
+        /**
+         * Command that starts the shell. If null, the default shell of the user is started.
+         */
+        String getShellCommand() {
+            return shellCommand;
+        }
+
+        String getNoOpCommand() {
+            return noOpCommand;
+        }
+
+        /**
+         * Returns the command followed by sentinel statements.
+         */
+        abstract String wrap(String command, String token);
+
+        public static Dialect forLanguage(String scriptLanguage) {
+            if (scriptLanguage != null && scriptLanguage.toLowerCase().startsWith("powershell")) {
+                return POWERSHELL;
+            }
+            return POSIX;
+        }
+    }
+
+    /**
+     * Reads the stream up to the sentinel line. The data that follow the sentinel are kept for the next read.
+     */
+    private static class SentinelReader {
+
+        private final InputStream in;
+        private byte[] buffer = new byte[8192];
+        private int length = 0;
+
+        private SentinelReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Copies the stream to the collector until the sentinel with the token is found.
+         * Returns the value from the sentinel line, null if the stream ended before the sentinel.
+         */
+        private String readUntilSentinel(String token, OutputCollector collector) throws IOException {
+            byte[] marker = ("\n" + token + ":").getBytes(StandardCharsets.US_ASCII);
+            while (true) {
+                int markerIndex = indexOf(marker, 0);
+                if (markerIndex >= 0) {
+                    int lineEnd = indexOf(new byte[] { '\n' }, markerIndex + marker.length);
+                    if (lineEnd >= 0) {
+                        collector.write(buffer, 0, markerIndex);
+                        String value = new String(buffer, markerIndex + marker.length, lineEnd - markerIndex - marker.length,
+                                StandardCharsets.US_ASCII).trim();
+                        consume(lineEnd + 1);
+                        return value;
+                    }
+                    // The sentinel line is not complete yet
+                    collector.write(buffer, 0, markerIndex);
+                    consume(markerIndex);
+                } else {
+                    // The end of the buffer may contain beginning of the marker
+                    int keep = Math.min(length, marker.length - 1);
+                    collector.write(buffer, 0, length - keep);
+                    consume(length - keep);
+                }
+                if (length == buffer.length) {
+                    byte[] newBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, length);
+                    buffer = newBuffer;
+                }
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    collector.write(buffer, 0, length);
+                    length = 0;
+                    return null;
+                }
+                length += read;
+            }
+        }
+
+        private int indexOf(byte[] pattern, int from) {
+            outer:
+            for (int i = from; i <= length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (buffer[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private void consume(int count) {
+            System.arraycopy(buffer, count, buffer, 0, length - count);
+            length -= count;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker for connections to one target host, shared by all connector instances in the JVM.
+ *
+ * The breaker is "closed" while the host is reachable. After several consecutive connection failures it is "open":
+ * connection attempts fail immediately, without waiting for network timeouts.
+ * When the cool-down period is over, the breaker is "half-open": a single attempt (probe) is let through.
+ * Successful probe closes the breaker, failed probe opens it again for another cool-down period.
+ *
+ * Only failures to reach the host (TCP connection, key exchange) are counted.
+ * Failed authentication means that the host is reachable.
+ *
+ * @author semancik
+ */
+public class SshCircuitBreaker {
+
+    private static final Log LOG = Log.getLog(SshCircuitBreaker.class);
+
+    private static final Map<String, SshCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String host;
+
+    // Following fields are guarded by "this"
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private long failureCount = 0;
+    private long successCount = 0;
+    private long rejectedCount = 0;
+
+    private SshCircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Returns the breaker for the host (host name and port), creating it if needed.
+     */
+    public static SshCircuitBreaker forHost(String host) {
+        return BREAKERS.computeIfAbsent(host, SshCircuitBreaker::new);
+    }
+
+    /**
+     * Returns the breaker for the host (host name and port), or null if there was no connection attempt through a breaker.
+     */
+    public static SshCircuitBreaker getBreaker(String host) {
+        return BREAKERS.get(host);
+    }
+
+    /**
+     * Returns all the breakers by host, e.g. for monitoring.
+     */
+    public static Map<String, SshCircuitBreaker> getBreakers() {
+        return Collections.unmodifiableMap(new TreeMap<>(BREAKERS));
+    }
+
+    /**
+     * Forgets all the breakers. Mostly useful for tests.
+     */
+    public static void resetAll() {
+        BREAKERS.clear();
+    }
+
+    /**
+     * Checks whether connection attempt may proceed. Throws an exception if the breaker is open.
+     * Each permitted attempt must be followed by recordSuccess() or recordFailure().
+     *
+     * @param coolDown time (in milliseconds) after which a probe is let through an open breaker
+     */
+    public synchronized void acquirePermission(long coolDown) {
+        switch (state) {
+            case CLOSED:
+                return;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= coolDown) {
+                    LOG.ok("Circuit breaker for {0} is half-open, letting probe through", host);
+                    state = State.HALF_OPEN;
+                    return;
+                }
+                break;
+            case HALF_OPEN:
+                // Probe is in progress, other attempts wait for its result
+                break;
+        }
+        rejectedCount++;
+        throw new ConnectionFailedException("Host " + host + " is not reachable (" + consecutiveFailures
+                + " consecutive connection failures), circuit breaker is open, failing fast");
+    }
+
+    public synchronized void recordSuccess() {
+        successCount++;
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            LOG.info("Circuit breaker for {0} closed, host is reachable again", host);
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * @param threshold number of consecutive failures that opens the breaker
+     */
+    public synchronized void recordFailure(int threshold) {
+        failureCount++;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= threshold) {
+            if (state == State.CLOSED) {
+                LOG.warn("Circuit breaker for {0} opened after {1} consecutive connection failures", host, consecutiveFailures);
+            } else {
+                LOG.ok("Probe to {0} failed, circuit breaker is open again", host);
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Total number of failed connection attempts.
+     */
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Total number of successful connection attempts.
+     */
+    public synchronized long getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * Total number of connection attempts that failed fast because the breaker was open.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SshCircuitBreaker(" + host + ": " + state + ", consecutiveFailures=" + consecutiveFailures
+                + ", failures=" + failureCount + ", successes=" + successCount + ", rejected=" + rejectedCount + ")";
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import com.jcraft.jzlib.Deflater;
+import com.jcraft.jzlib.GZIPException;
+import com.jcraft.jzlib.Inflater;
+import com.jcraft.jzlib.JZlib;
+import net.schmizz.sshj.Config;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.common.Buffer;
+import net.schmizz.sshj.common.DisconnectReason;
+import net.schmizz.sshj.common.Factory;
+import net.schmizz.sshj.common.SSHRuntimeException;
+import net.schmizz.sshj.transport.TransportException;
+import net.schmizz.sshj.transport.compression.Compression;
+import net.schmizz.sshj.transport.compression.NoneCompression;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Zlib compression of SSH transport with configurable compression level.
+ * It also counts the bytes before and after compression, so the effect of compression can be monitored by host.
+ *
+ * Compression is negotiated with the server: "zlib@openssh.com" (compression starts after authentication)
+ * is preferred, then "zlib". If the server supports neither of them, the connection is not compressed.
+ *
+ * @author semancik
+ */
+public class SshCompression implements Compression {
+
+    public static final String ZLIB = "zlib";
+    public static final String ZLIB_DELAYED = "zlib@openssh.com";
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final Map<String, Statistics> STATISTICS = new ConcurrentHashMap<>();
+
+    /**
+     * Configurations by host and level. Creating of the configuration is expensive (same as for DefaultConfig),
+     * and it is shared by the SSH clients in the same way as the default configuration in SshResourceCache.
+     */
+    private static final Map<String, Config> CONFIGS = new ConcurrentHashMap<>();
+
+    private final int level;
+    private final boolean delayed;
+    private final Statistics statistics;
+    private final byte[] tempBuffer = new byte[BUFFER_SIZE];
+
+    private Deflater deflater;
+    private Inflater inflater;
+
+    private SshCompression(int level, boolean delayed, Statistics statistics) {
+        this.level = level;
+        this.delayed = delayed;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns SSH client configuration that negotiates compression. The statistics of the connections are added
+     * to the host statistics. Everything but the compression is the same as in the default configuration.
+     * The configuration must not be modified.
+     *
+     * @param level zlib compression level, 1 (fastest) to 9 (best compression)
+     */
+    public static Config getConfig(int level, String host) {
+        return CONFIGS.computeIfAbsent(host + "/" + level,
+                key -> new CompressionConfig(level, STATISTICS.computeIfAbsent(host, Statistics::new)));
+    }
+
+    /**
+     * Returns compression statistics by host, e.g. for monitoring.
+     */
+    public static Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<>(STATISTICS));
+    }
+
+    /**
+     * Forgets all the statistics. Mostly useful for tests.
+     */
+    public static void resetAll() {
+        STATISTICS.clear();
+        CONFIGS.clear();
+    }
+
+    @Override
+    public void init(Mode mode) {
+        try {
+            switch (mode) {
+                case DEFLATE:
+                    deflater = new Deflater(level);
+                    break;
+                case INFLATE:
+                    inflater = new Inflater();
+                    break;
+            }
+        } catch (GZIPException e) {
+            throw new SSHRuntimeException("Cannot initialize zlib compression: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean isDelayed() {
+        return delayed;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // Buffer is raw in the Compression interface
+    public void compress(Buffer buffer) {
+        int payload = buffer.available();
+        deflater.setNextIn(buffer.array());
+        deflater.setNextInIndex(buffer.rpos());
+        deflater.setAvailIn(payload);
+        buffer.wpos(buffer.rpos());
+        do {
+            deflater.setNextOut(tempBuffer);
+            deflater.setNextOutIndex(0);
+            deflater.setAvailOut(BUFFER_SIZE);
+            int status = deflater.deflate(JZlib.Z_PARTIAL_FLUSH);
+            if (status != JZlib.Z_OK) {
+                throw new SSHRuntimeException("compress: deflate returned " + status);
+            }
+            buffer.putRawBytes(tempBuffer, 0, BUFFER_SIZE - deflater.getAvailOut());
+        } while (deflater.getAvailOut() == 0);
+        statistics.sent(payload, buffer.available());
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // Buffer is raw in the Compression interface
+    public void uncompress(Buffer from, Buffer to) throws TransportException {
+        int wire = from.available();
+        int start = to.available();
+        inflater.setNextIn(from.array());
+        inflater.setNextInIndex(from.rpos());
+        inflater.setAvailIn(wire);
+        while (true) {
+            inflater.setNextOut(tempBuffer);
+            inflater.setNextOutIndex(0);
+            inflater.setAvailOut(BUFFER_SIZE);
+            int status = inflater.inflate(JZlib.Z_PARTIAL_FLUSH);
+            switch (status) {
+                case JZlib.Z_OK:
+                    to.putRawBytes(tempBuffer, 0, BUFFER_SIZE - inflater.getAvailOut());
+                    break;
+                case JZlib.Z_BUF_ERROR:
+                    // All the input was processed
+                    statistics.received(to.available() - start, wire);
+                    return;
+                default:
+                    throw new TransportException(DisconnectReason.COMPRESSION_ERROR, "uncompress: inflate returned " + status);
+            }
+        }
+    }
+
+    private static class CompressionConfig extends DefaultConfig {
+
+        private CompressionConfig(int level, Statistics statistics) {
+            setCompressionFactories(Arrays.asList(
+                    new CompressionFactory(ZLIB_DELAYED, level, true, statistics),
+                    new CompressionFactory(ZLIB, level, false, statistics),
+                    new NoneCompression.Factory()));
+        }
+    }
+
+    private static class CompressionFactory implements Factory.Named<Compression> {
+
+        private final String name;
+        private final int level;
+        private final boolean delayed;
+        private final Statistics statistics;
+
+        private CompressionFactory(String name, int level, boolean delayed, Statistics statistics) {
+            this.name = name;
+            this.level = level;
+            this.delayed = delayed;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public Compression create() {
+            return new SshCompression(level, delayed, statistics);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Bytes before compression (payload) and after compression (wire) of all compressed connections to a host.
+     */
+    public static class Statistics {
+
+        private final String host;
+        private final LongAdder payloadBytesSent = new LongAdder();
+        private final LongAdder wireBytesSent = new LongAdder();
+        private final LongAdder payloadBytesReceived = new LongAdder();
+        private final LongAdder wireBytesReceived = new LongAdder();
+
+        private Statistics(String host) {
+            this.host = host;
+        }
+
+        private void sent(long payload, long wire) {
+            payloadBytesSent.add(payload);
+            wireBytesSent.add(wire);
+        }
+
+        private void received(long payload, long wire) {
+            payloadBytesReceived.add(payload);
+            wireBytesReceived.add(wire);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getPayloadBytesSent() {
+            return payloadBytesSent.sum();
+        }
+
+        public long getWireBytesSent() {
+            return wireBytesSent.sum();
+        }
+
+        public long getPayloadBytesReceived() {
+            return payloadBytesReceived.sum();
+        }
+
+        public long getWireBytesReceived() {
+            return wireBytesReceived.sum();
+        }
+
+        /**
+         * Size of the received data after compression relative to its original size (e.g. 0.2 means 80% savings).
+         * One if nothing was received yet.
+         */
+        public double getReceivedRatio() {
+            long payload = getPayloadBytesReceived();
+            return payload == 0 ? 1.0 : (double) getWireBytesReceived() / payload;
+        }
+
+        @Override
+        public String toString() {
+            return "Compression(" + host + ": sent " + getPayloadBytesSent() + " bytes as " + getWireBytesSent()
+                    + ", received " + getPayloadBytesReceived() + " bytes as " + getWireBytesReceived()
+                    + String.format(", received ratio %.2f)", getReceivedRatio());
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit of concurrent connection attempts (TCP connect, key exchange and authentication) to one target host,
+ * shared by all connector instances in the JVM.
+ *
+ * SSH servers limit the number of connections that are not authenticated yet (e.g. sshd MaxStartups)
+ * and they drop the connections over the limit. The limiter finds the sustainable concurrency of the host
+ * by additive increase, multiplicative decrease (AIMD):
+ * each successful attempt raises the limit by 1/limit (i.e. by one after a whole "window" of successful attempts),
+ * dropped connection halves it. Connection that takes much longer than the fastest recent connections
+ * is a sign of overloaded host too, it lowers the limit slightly.
+ * Attempts over the limit wait for a free slot, but only for limited time.
+ *
+ * Failed authentication says nothing about the load of the host, it does not change the limit.
+ *
+ * @author semancik
+ */
+public class SshConcurrencyLimiter {
+
+    private static final Log LOG = Log.getLog(SshConcurrencyLimiter.class);
+
+    private static final Map<String, SshConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    /**
+     * Limit is multiplied by this factor when a connection is dropped.
+     */
+    private static final double DROP_BACKOFF = 0.5;
+
+    /**
+     * Limit is multiplied by this factor when a connection is slow.
+     */
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    /**
+     * Connection is slow when it takes this many times longer than the fastest recent connections.
+     */
+    private static final double LATENCY_TOLERANCE = 3.0;
+
+    /**
+     * Connection is not considered slow if it takes less than this much longer than the fastest recent connections.
+     * Such small differences are just noise (e.g. scheduling or garbage collection), not load of the host.
+     */
+    private static final long LATENCY_NOISE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Minimal latency slowly grows with each attempt, so it follows the changes of network conditions.
+     */
+    private static final double MIN_LATENCY_DRIFT = 1.001;
+
+    public enum Outcome {
+        /**
+         * Connection was established and authenticated.
+         */
+        SUCCESS,
+
+        /**
+         * Connection was refused or dropped by the server, e.g. because of the limit of unauthenticated connections.
+         */
+        DROPPED,
+
+        /**
+         * Failure that says nothing about the load of the host, e.g. failed authentication.
+         */
+        IGNORED
+    }
+
+    private final String host;
+    private final int maxLimit;
+
+    // Following fields are guarded by "this"
+    private double limit;
+    private int inFlight = 0;
+    private double minLatencyNanos = Double.MAX_VALUE;
+    private long lastDecrease = 0;
+    private long successCount = 0;
+    private long droppedCount = 0;
+    private long rejectedCount = 0;
+
+    private SshConcurrencyLimiter(String host, int initialLimit, int maxLimit) {
+        this.host = host;
+        this.maxLimit = Math.max(maxLimit, 1);
+        this.limit = Math.min(Math.max(initialLimit, 1), this.maxLimit);
+    }
+
+    /**
+     * Returns the limiter for the host (host name and port), creating it if needed.
+     * The limits are taken from the first connector instance that uses the host.
+     */
+    public static SshConcurrencyLimiter forHost(String host, int initialLimit, int maxLimit) {
+        return LIMITERS.computeIfAbsent(host, h -> new SshConcurrencyLimiter(h, initialLimit, maxLimit));
+    }
+
+    /**
+     * Returns all the limiters by host, e.g. for monitoring.
+     */
+    public static Map<String, SshConcurrencyLimiter> getLimiters() {
+        return Collections.unmodifiableMap(new TreeMap<>(LIMITERS));
+    }
+
+    /**
+     * Forgets all the limiters. Mostly useful for tests.
+     */
+    public static void resetAll() {
+        LIMITERS.clear();
+    }
+
+    /**
+     * Waits until the connection attempt may proceed. Each permitted attempt must be followed by release().
+     * Throws an exception if there is no free slot in maxWait milliseconds, so the connector may try another host.
+     *
+     * @return start of the attempt (nanoTime), to be passed to release()
+     */
+    public synchronized long acquire(long maxWait) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        while (inFlight >= getLimit()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                rejectedCount++;
+                throw new ConnectionFailedException("Too many concurrent connection attempts to " + host + " (limit "
+                        + getLimit() + "), no free slot in " + maxWait + " ms");
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted while waiting for connection attempt to " + host, e);
+            }
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    public synchronized void release(long startNanos, Outcome outcome) {
+        inFlight--;
+        long now = System.nanoTime();
+        switch (outcome) {
+            case SUCCESS:
+                successCount++;
+                long latency = now - startNanos;
+                minLatencyNanos = Math.min(latency, minLatencyNanos * MIN_LATENCY_DRIFT);
+                if (latency > minLatencyNanos * LATENCY_TOLERANCE && latency - minLatencyNanos > LATENCY_NOISE_NANOS) {
+                    decrease(startNanos, now, LATENCY_BACKOFF);
+                } else if (inFlight + 1 >= getLimit()) {
+                    // Increase only when the limit was actually reached, otherwise the limit would grow without any evidence
+                    limit = Math.min(limit + 1.0 / limit, maxLimit);
+                }
+                break;
+            case DROPPED:
+                droppedCount++;
+                decrease(startNanos, now, DROP_BACKOFF);
+                break;
+            case IGNORED:
+                break;
+        }
+        notifyAll();
+    }
+
+    private void decrease(long startNanos, long now, double backoff) {
+        // Attempts that started before the last decrease were made with the old limit, they reflect the old load.
+        // Without this all the attempts failing at once would drop the limit to the minimum.
+        if (startNanos < lastDecrease) {
+            return;
+        }
+        double oldLimit = limit;
+        limit = Math.max(limit * backoff, 1);
+        lastDecrease = now;
+        LOG.ok("Concurrency limit for {0} lowered from {1} to {2}", host, (int) oldLimit, getLimit());
+    }
+
+    /**
+     * Current limit of concurrent connection attempts.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getSuccessCount() {
+        return successCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SshConcurrencyLimiter(" + host + ": limit=" + getLimit() + ", inFlight=" + inFlight
+                + ", successes=" + successCount + ", dropped=" + droppedCount + ", rejected=" + rejectedCount + ")";
+    }
+}
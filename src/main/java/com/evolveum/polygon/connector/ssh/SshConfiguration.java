@@ -30,11 +30,14 @@ public class SshConfiguration extends AbstractConfiguration {
 
     /**
      * Server hostname.
+     * Several equivalent hosts may be specified, separated by commas (or whitespace). The host for each connection
+     * is chosen by hostSelectionStrategy, hosts that cannot be reached are skipped.
+     * Each host may have its own port (host:port, IPv6 address must be in brackets then).
      */
     private String host;
 
     /**
-     * Server port.
+     * Server port. Used for hosts without explicit port.
      */
     private int port = 22;
 
@@ -78,6 +81,8 @@ public class SshConfiguration extends AbstractConfiguration {
 
     /**
      * Argument style, used to transform script arguments to command-line.
+     * Other styles may be provided by ArgumentEncoder implementations registered as services (selected by the style name),
+     * or selected by name of the ArgumentEncoder class.
      */
     private String argumentStyle = ARGUMENT_STYLE_DASH;
 
@@ -85,7 +90,7 @@ public class SshConfiguration extends AbstractConfiguration {
     public static final String ARGUMENT_STYLE_DASH = "dash";
 
     // command --fu=foo --bar=baz
-//    public static final String ARGUMENT_STYLE_DASHDASH = "dashdash";
+    public static final String ARGUMENT_STYLE_DASHDASH = "dashdash";
 
     // command /f foo /b bar
     public static final String ARGUMENT_STYLE_SLASH = "slash";
@@ -105,6 +110,260 @@ public class SshConfiguration extends AbstractConfiguration {
     public static final String HANDLE_NULL_AS_EMPTY_STRING = "asEmptyString";
     public static final String HANDLE_NULL_AS_GONE = "asGone";
 
+    /**
+     * Whether values of "dash", "dashdash" and "slash" style arguments are quoted for the shell of the script language
+     * ("sh" and "bash": POSIX single quotes, "powershell": PowerShell single quotes, "cmd": cmd.exe escaping).
+     * Quoted values are passed to the command exactly as they are, whatever they contain.
+     * Option names are restricted to letters, digits, dash and underscore in that case.
+     * If not set, the values are inserted into the command line as they are (the default, for compatibility).
+     * Values of "variables-*" style arguments are always quoted.
+     */
+    private boolean quoteOptionValues = false;
+
+    /**
+     * Defines how the SSH connection is managed.
+     * The "exec" mode creates a new SSH connection for every script execution and tears it down afterwards.
+     * The "persistent" mode keeps one authenticated connection for each connector instance,
+     * opening only a new SSH session (channel) for each script execution.
+     * The "shared" mode shares the connections among all connector instances in the JVM that connect to the same
+     * host with the same credentials. Several scripts may be executed in parallel on one connection,
+     * each script in its own SSH channel.
+     */
+    private String connectionMode = CONNECTION_MODE_EXEC;
+
+    public static final String CONNECTION_MODE_EXEC = "exec";
+    public static final String CONNECTION_MODE_PERSISTENT = "persistent";
+    public static final String CONNECTION_MODE_SHARED = "shared";
+
+    /**
+     * Defines how the commands are executed.
+     * The "exec" mode executes each command in a new SSH session, using the SSH "exec" request.
+     * The "shell" mode starts a remote shell (login shell of the user, or PowerShell for PowerShell scripts)
+     * and keeps it running for the lifetime of the connector instance. The commands are written to the shell input.
+     * This avoids the overhead of starting a new shell (e.g. PowerShell) for each command.
+     * The connection is kept open while the shell is running, regardless of the connection mode.
+     */
+    private String executionMode = EXECUTION_MODE_EXEC;
+
+    public static final String EXECUTION_MODE_EXEC = "exec";
+    public static final String EXECUTION_MODE_SHELL = "shell";
+
+    /**
+     * Maximum number of SSH channels (sessions) that are opened in parallel on one shared connection.
+     * Used in "shared" connection mode. More connections are opened when this limit is reached.
+     * It should not be higher than MaxSessions setting of sshd server (which is 10 by default).
+     */
+    private int maxChannelsPerConnection = 10;
+
+    /**
+     * Timeout (in milliseconds) for establishing TCP connection to the server. Zero means no timeout.
+     */
+    private int connectTimeout = 30000;
+
+    /**
+     * Timeout (in milliseconds) for each step of key exchange and authentication.
+     */
+    private int authTimeout = 30000;
+
+    /**
+     * Maximum time (in milliseconds) that a command may run. Zero means no limit.
+     * The command is killed when the time is up.
+     */
+    private int commandTimeout = 0;
+
+    /**
+     * Maximum time (in milliseconds) that a command may run without producing any output. Zero means no limit.
+     * The command is killed when the time is up.
+     */
+    private int idleReadTimeout = 0;
+
+    /**
+     * Number of authenticated connections that are established ahead of demand and kept ready.
+     * In "shared" connection mode, the connections are established in background and kept open
+     * (for all connector instances with the same host and credentials).
+     * In "persistent" connection mode, any positive value means that each connector instance connects
+     * when it is initialized, not when the first script is executed.
+     * Zero means that connections are established only when needed.
+     */
+    private int minIdleConnections = 0;
+
+    /**
+     * Time (in milliseconds) after which an unused connection is closed. Zero means that unused connections are kept open.
+     * In "shared" connection mode, unused connections are closed in background, but minIdleConnections are kept open.
+     * In "persistent" connection mode, the connection of unused connector instance is closed when the instance
+     * is taken from the connector pool again, and a new connection is established.
+     */
+    private int idleConnectionTimeout = 0;
+
+    /**
+     * Maximum size (in bytes) of command output kept in memory. Zero means no limit.
+     * What happens with the output over the limit is controlled by outputOverflow.
+     */
+    private int maxOutputSize = 0;
+
+    /**
+     * Defines what happens when the command output is larger than maxOutputSize.
+     * The output can be truncated ("truncate") and the rest of it is discarded.
+     * Or the whole output is written to a temporary file ("spool") and the script returns the file instead of string.
+     */
+    private String outputOverflow = OUTPUT_OVERFLOW_TRUNCATE;
+
+    public static final String OUTPUT_OVERFLOW_TRUNCATE = "truncate";
+    public static final String OUTPUT_OVERFLOW_SPOOL = "spool";
+
+    /**
+     * Maximum size (in bytes) of command error output kept in memory. Zero means no limit.
+     * Error output over the limit is always truncated, it is used only in error messages and structured results.
+     * Unlike standard output, error output is limited by default, so a noisy command cannot exhaust the memory.
+     */
+    private int maxErrorOutputSize = 65536;
+
+    /**
+     * Defines what a script execution returns.
+     * The "output" mode returns standard output of the script (string, or file if the output was spooled).
+     * The "structured" mode returns a map with exit status, exit signal, standard output, error output, their sizes
+     * and durations of operation phases (see CommandResult for the keys). A failed script (see errorDetection)
+     * does not cause an exception in this mode, the failure is indicated by the "success" entry of the map.
+     */
+    private String resultMode = RESULT_MODE_OUTPUT;
+
+    public static final String RESULT_MODE_OUTPUT = "output";
+    public static final String RESULT_MODE_STRUCTURED = "structured";
+
+    /**
+     * Defines how a failed script is recognized.
+     * The "stderr" policy considers a script with any error output as failed. Exit status is ignored,
+     * as some shells (e.g. PowerShell) do not provide it and some commands (e.g. grep) use it for other purposes.
+     * The "exitStatus" policy considers a script with non-zero exit status as failed. Missing exit status means success.
+     * The "both" policy considers a script as failed if it has error output or non-zero exit status.
+     */
+    private String errorDetection = ERROR_DETECTION_STDERR;
+
+    public static final String ERROR_DETECTION_STDERR = "stderr";
+    public static final String ERROR_DETECTION_EXIT_STATUS = "exitStatus";
+    public static final String ERROR_DETECTION_BOTH = "both";
+
+    /**
+     * Whether to compress the SSH transport (zlib). It pays off for large, well compressible outputs
+     * (e.g. lists of users) over slow networks, at the cost of CPU time on both sides.
+     * Compression is used only if the server supports it (e.g. sshd Compression option).
+     */
+    private boolean compression = false;
+
+    /**
+     * Zlib compression level, from 1 (fastest) to 9 (best compression). Used only when compression is enabled.
+     * There is no minimal size of data to compress: SSH compression is a property of the whole transport,
+     * all packets are compressed once it is negotiated. Lower level is the way to make small outputs cheaper.
+     */
+    private int compressionLevel = 6;
+
+    /**
+     * Timeout (in milliseconds) for the liveness check of an open SSH connection.
+     * The check sends a keepalive request to the server and waits for the reply.
+     */
+    private int checkAliveTimeout = 5000;
+
+    /**
+     * Number of consecutive failures to connect to the host after which the connection attempts fail fast
+     * (circuit breaker opens). Zero means that the circuit breaker is not used.
+     * The state of the circuit breaker is shared by all connector instances that connect to the same host and port.
+     */
+    private int circuitBreakerThreshold = 0;
+
+    /**
+     * Time (in milliseconds) for which connection attempts fail fast when the circuit breaker is open.
+     * After that a single attempt is let through to check whether the host is reachable again.
+     */
+    private int circuitBreakerCoolDown = 30000;
+
+    /**
+     * Defines how the host is chosen if several hosts are specified.
+     * The "ordered" strategy uses the hosts in the specified order, the other hosts are just backups.
+     * The "roundRobin" strategy uses the hosts in turns.
+     * The "leastInFlight" strategy uses the host with the least operations in progress (in all connector instances).
+     * The "lowestLatency" strategy uses the host with the shortest average duration of recent operations.
+     * Name of a class implementing HostSelectionStrategy may be specified as well.
+     * In any case, the hosts that could not be reached recently (in circuitBreakerCoolDown) are tried last.
+     * The host is chosen when a connection is established. Persistent and shared connections stay with their host.
+     */
+    private String hostSelectionStrategy = HOST_SELECTION_ROUND_ROBIN;
+
+    public static final String HOST_SELECTION_ORDERED = "ordered";
+    public static final String HOST_SELECTION_ROUND_ROBIN = "roundRobin";
+    public static final String HOST_SELECTION_LEAST_IN_FLIGHT = "leastInFlight";
+    public static final String HOST_SELECTION_LOWEST_LATENCY = "lowestLatency";
+
+    /**
+     * Named groups of hosts for fan-out execution. Each value has the form "name=host1, host2:2222".
+     * When the script is executed with hostGroup operation option, it is executed on all the hosts of the group
+     * in parallel (instead of the host specified in host property). The result is a map of per-host results.
+     */
+    private String[] hostGroups;
+
+    /**
+     * Maximum number of hosts that fan-out script is executed on at the same time.
+     */
+    private int fanOutParallelism = 16;
+
+    /**
+     * Defines what happens when fan-out script fails on one of the hosts.
+     * In "collectAll" mode the script is executed on all the hosts and the failures are reported in per-host results.
+     * In "failFast" mode the script is not started on any other host after the first failure,
+     * the scripts that are already running are finished and then the operation fails.
+     */
+    private String fanOutFailureMode = FAN_OUT_FAILURE_MODE_COLLECT_ALL;
+
+    public static final String FAN_OUT_FAILURE_MODE_COLLECT_ALL = "collectAll";
+    public static final String FAN_OUT_FAILURE_MODE_FAIL_FAST = "failFast";
+
+    /**
+     * Maximum number of asynchronous scripts (see SshConnector.runScriptOnResourceAsync) of one connector instance
+     * that are executed at the same time. Other scripts wait for their turn.
+     * Each of the scripts uses its own SSH session. Shared connection mode is recommended, so the sessions are
+     * multiplexed over a few connections.
+     */
+    private int maxAsyncOperations = 64;
+
+    /**
+     * Initial limit of concurrent connection attempts (TCP connect, key exchange and authentication) to each host,
+     * shared by all connector instances. The limit adapts to the host: it grows while the connections succeed
+     * and drops when the server drops connections (e.g. because of sshd MaxStartups) or when the connections get slow.
+     * Zero means no limit.
+     */
+    private int concurrencyLimit = 0;
+
+    /**
+     * Upper bound of the adaptive limit of concurrent connection attempts to each host.
+     */
+    private int maxConcurrencyLimit = 100;
+
+    /**
+     * Maximum time (in milliseconds) that a connection attempt waits for a free slot under the concurrency limit.
+     * After that the attempt fails (and another host is tried, if there are several hosts).
+     */
+    private int concurrencyLimitWait = 10000;
+
+    /**
+     * Name of a class that implements SshMetricsListener. The listener receives measurements of all the operations
+     * (e.g. to forward them to a monitoring system). Only one listener of each class is created in the JVM.
+     * The statistics are also available in JMX, no listener is needed for that.
+     */
+    private String metricsListener = null;
+
+    /**
+     * Maximum number of characters of script text and script output included in log messages.
+     * Longer texts are truncated. Zero means that script texts and outputs are not logged at all, only their size.
+     * Details of each script execution (including the output) are logged on debug level (OK) only.
+     */
+    private int diagnosticLogMaxLength = 1000;
+
+    /**
+     * Scripts that take longer than this time (in milliseconds) are logged on warning level,
+     * using separate logger (com.evolveum.polygon.connector.ssh.OperationLog$SlowScriptLog).
+     * Zero means that slow scripts are not logged.
+     */
+    private int slowScriptThreshold = 0;
+
     @ConfigurationProperty(order = 100)
     public String getHost() {
         return host;
@@ -195,6 +454,285 @@ public class SshConfiguration extends AbstractConfiguration {
         this.handleNullValues = handleNullValues;
     }
 
+    @ConfigurationProperty(order = 131)
+    public boolean isQuoteOptionValues() {
+        return quoteOptionValues;
+    }
+
+    public void setQuoteOptionValues(boolean quoteOptionValues) {
+        this.quoteOptionValues = quoteOptionValues;
+    }
+
+    @ConfigurationProperty(order = 140)
+    public String getConnectionMode() {
+        return connectionMode;
+    }
+
+    public void setConnectionMode(String connectionMode) {
+        this.connectionMode = connectionMode;
+    }
+
+    @ConfigurationProperty(order = 141)
+    public int getCheckAliveTimeout() {
+        return checkAliveTimeout;
+    }
+
+    public void setCheckAliveTimeout(int checkAliveTimeout) {
+        this.checkAliveTimeout = checkAliveTimeout;
+    }
+
+    @ConfigurationProperty(order = 142)
+    public int getMaxChannelsPerConnection() {
+        return maxChannelsPerConnection;
+    }
+
+    public void setMaxChannelsPerConnection(int maxChannelsPerConnection) {
+        this.maxChannelsPerConnection = maxChannelsPerConnection;
+    }
+
+    @ConfigurationProperty(order = 143)
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @ConfigurationProperty(order = 144)
+    public int getAuthTimeout() {
+        return authTimeout;
+    }
+
+    public void setAuthTimeout(int authTimeout) {
+        this.authTimeout = authTimeout;
+    }
+
+    @ConfigurationProperty(order = 145)
+    public int getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    public void setCommandTimeout(int commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    @ConfigurationProperty(order = 146)
+    public int getIdleReadTimeout() {
+        return idleReadTimeout;
+    }
+
+    public void setIdleReadTimeout(int idleReadTimeout) {
+        this.idleReadTimeout = idleReadTimeout;
+    }
+
+    @ConfigurationProperty(order = 147)
+    public String getExecutionMode() {
+        return executionMode;
+    }
+
+    public void setExecutionMode(String executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    @ConfigurationProperty(order = 148)
+    public int getMinIdleConnections() {
+        return minIdleConnections;
+    }
+
+    public void setMinIdleConnections(int minIdleConnections) {
+        this.minIdleConnections = minIdleConnections;
+    }
+
+    @ConfigurationProperty(order = 149)
+    public int getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    public void setIdleConnectionTimeout(int idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    @ConfigurationProperty(order = 150)
+    public int getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    public void setMaxOutputSize(int maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    @ConfigurationProperty(order = 151)
+    public String getOutputOverflow() {
+        return outputOverflow;
+    }
+
+    public void setOutputOverflow(String outputOverflow) {
+        this.outputOverflow = outputOverflow;
+    }
+
+    @ConfigurationProperty(order = 152)
+    public int getMaxErrorOutputSize() {
+        return maxErrorOutputSize;
+    }
+
+    public void setMaxErrorOutputSize(int maxErrorOutputSize) {
+        this.maxErrorOutputSize = maxErrorOutputSize;
+    }
+
+    @ConfigurationProperty(order = 153)
+    public String getResultMode() {
+        return resultMode;
+    }
+
+    public void setResultMode(String resultMode) {
+        this.resultMode = resultMode;
+    }
+
+    @ConfigurationProperty(order = 154)
+    public String getErrorDetection() {
+        return errorDetection;
+    }
+
+    public void setErrorDetection(String errorDetection) {
+        this.errorDetection = errorDetection;
+    }
+
+    @ConfigurationProperty(order = 155)
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    @ConfigurationProperty(order = 156)
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    @ConfigurationProperty(order = 157)
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    @ConfigurationProperty(order = 158)
+    public int getCircuitBreakerCoolDown() {
+        return circuitBreakerCoolDown;
+    }
+
+    public void setCircuitBreakerCoolDown(int circuitBreakerCoolDown) {
+        this.circuitBreakerCoolDown = circuitBreakerCoolDown;
+    }
+
+    @ConfigurationProperty(order = 159)
+    public String getHostSelectionStrategy() {
+        return hostSelectionStrategy;
+    }
+
+    public void setHostSelectionStrategy(String hostSelectionStrategy) {
+        this.hostSelectionStrategy = hostSelectionStrategy;
+    }
+
+    @ConfigurationProperty(order = 160)
+    public String[] getHostGroups() {
+        return hostGroups;
+    }
+
+    public void setHostGroups(String[] hostGroups) {
+        this.hostGroups = hostGroups;
+    }
+
+    @ConfigurationProperty(order = 161)
+    public int getFanOutParallelism() {
+        return fanOutParallelism;
+    }
+
+    public void setFanOutParallelism(int fanOutParallelism) {
+        this.fanOutParallelism = fanOutParallelism;
+    }
+
+    @ConfigurationProperty(order = 162)
+    public String getFanOutFailureMode() {
+        return fanOutFailureMode;
+    }
+
+    public void setFanOutFailureMode(String fanOutFailureMode) {
+        this.fanOutFailureMode = fanOutFailureMode;
+    }
+
+    @ConfigurationProperty(order = 163)
+    public int getMaxAsyncOperations() {
+        return maxAsyncOperations;
+    }
+
+    public void setMaxAsyncOperations(int maxAsyncOperations) {
+        this.maxAsyncOperations = maxAsyncOperations;
+    }
+
+    @ConfigurationProperty(order = 164)
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public void setConcurrencyLimit(int concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    @ConfigurationProperty(order = 165)
+    public int getMaxConcurrencyLimit() {
+        return maxConcurrencyLimit;
+    }
+
+    public void setMaxConcurrencyLimit(int maxConcurrencyLimit) {
+        this.maxConcurrencyLimit = maxConcurrencyLimit;
+    }
+
+    @ConfigurationProperty(order = 166)
+    public int getConcurrencyLimitWait() {
+        return concurrencyLimitWait;
+    }
+
+    public void setConcurrencyLimitWait(int concurrencyLimitWait) {
+        this.concurrencyLimitWait = concurrencyLimitWait;
+    }
+
+    @ConfigurationProperty(order = 167)
+    public String getMetricsListener() {
+        return metricsListener;
+    }
+
+    public void setMetricsListener(String metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    @ConfigurationProperty(order = 168)
+    public int getDiagnosticLogMaxLength() {
+        return diagnosticLogMaxLength;
+    }
+
+    public void setDiagnosticLogMaxLength(int diagnosticLogMaxLength) {
+        this.diagnosticLogMaxLength = diagnosticLogMaxLength;
+    }
+
+    @ConfigurationProperty(order = 169)
+    public int getSlowScriptThreshold() {
+        return slowScriptThreshold;
+    }
+
+    public void setSlowScriptThreshold(int slowScriptThreshold) {
+        this.slowScriptThreshold = slowScriptThreshold;
+    }
+
     @Override
     public void validate() {
     }
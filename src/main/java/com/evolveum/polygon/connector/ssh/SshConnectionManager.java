@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import net.schmizz.sshj.SSHClient;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide manager of SSH connections shared by all connector instances.
+ *
+ * Connections are grouped by a key that identifies the target and credentials (host, port, username, authentication).
+ * The part of the key after '#' character is a credential fingerprint, it is never logged.
+ * Each connection can carry several SSH channels (sessions) at once, up to the configured limit.
+ * When all the connections for the key are fully used, a new connection is established.
+ *
+ * Connector instances may also register a maintenance policy for their key.
+ * Then a background task keeps minimal number of idle connections established ahead of demand,
+ * and it closes connections that were not used for a long time.
+ *
+ * @author semancik
+ */
+public class SshConnectionManager {
+
+    private static final Log LOG = Log.getLog(SshConnectionManager.class);
+
+    private static final SshConnectionManager INSTANCE = new SshConnectionManager();
+
+    private static final long MAINTENANCE_INTERVAL = 1000;
+
+    /**
+     * Connections by connection key. Guarded by "this".
+     */
+    private final Map<String, List<SharedConnection>> connections = new HashMap<>();
+
+    /**
+     * Maintenance policies by connection key. Guarded by "this".
+     */
+    private final Map<String, MaintenancePolicy> policies = new HashMap<>();
+
+    /**
+     * Runs the maintenance. Created when the first policy is registered. Guarded by "this".
+     */
+    private ScheduledExecutorService maintenanceExecutor = null;
+
+    public static SshConnectionManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reserves a channel on a shared connection for the key, establishing a new connection if needed.
+     * The caller must return the channel by calling release() or invalidate().
+     */
+    public SharedConnection acquire(String key, int maxChannels, ConnectionFactory factory) {
+        SharedConnection connection;
+        boolean establish = false;
+        synchronized (this) {
+            connection = findFreeConnection(key, maxChannels);
+            if (connection == null) {
+                connection = new SharedConnection(key, maxChannels);
+                connections.computeIfAbsent(key, k -> new ArrayList<>()).add(connection);
+                establish = true;
+            }
+            connection.channels++;
+        }
+        if (establish) {
+            try {
+                connection.establish(factory);
+            } catch (RuntimeException e) {
+                invalidate(connection);
+                throw e;
+            }
+        } else {
+            connection.awaitEstablished();
+        }
+        return connection;
+    }
+
+    private SharedConnection findFreeConnection(String key, int maxChannels) {
+        List<SharedConnection> keyConnections = connections.get(key);
+        if (keyConnections == null) {
+            return null;
+        }
+        Iterator<SharedConnection> iterator = keyConnections.iterator();
+        while (iterator.hasNext()) {
+            SharedConnection connection = iterator.next();
+            if (connection.isBroken()) {
+                iterator.remove();
+                connection.close();
+                continue;
+            }
+            if (connection.channels < Math.min(maxChannels, connection.maxChannels)) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the channel to the shared connection. The connection stays open for other users,
+     * unless it was discarded while the channel was used. Such connection is closed by its last user.
+     */
+    public void release(SharedConnection connection) {
+        synchronized (this) {
+            connection.channels--;
+            connection.lastUsed = System.currentTimeMillis();
+            if (!connection.broken || connection.channels > 0) {
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Returns the channel and discards the connection, e.g. after a communication error.
+     * Other users of the connection may finish their work, but the connection will not be handed out any more.
+     */
+    public void invalidate(SharedConnection connection) {
+        synchronized (this) {
+            connection.channels--;
+        }
+        discard(connection);
+    }
+
+    /**
+     * Removes the connection from the manager. The connection is closed when nobody uses it.
+     */
+    private void discard(SharedConnection connection) {
+        synchronized (this) {
+            connection.broken = true;
+            List<SharedConnection> keyConnections = connections.get(connection.key);
+            if (keyConnections != null) {
+                keyConnections.remove(connection);
+            }
+            if (connection.channels > 0) {
+                // Still used by other threads, they will fail by themselves.
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * The server refused to open another channel (e.g. sshd MaxSessions limit was reached).
+     * The connection will not be offered for more channels than it carries now.
+     */
+    public synchronized void limitChannels(SharedConnection connection) {
+        connection.maxChannels = Math.max(1, connection.channels - 1);
+        LOG.ok("Limiting SSH connection {0} to {1} channels", connection.getDescription(), connection.maxChannels);
+    }
+
+    /**
+     * Registers maintenance policy for connections with the key. Each connector instance that registers the policy
+     * must unregister it when it is disposed. When several instances register a policy for the same key,
+     * the last registered settings apply.
+     *
+     * @param minIdle number of idle connections to keep established
+     * @param idleTimeout time (in milliseconds) after which unused connection is closed, zero means never
+     * @param factory factory to establish new connections
+     */
+    public void register(String key, int maxChannels, int minIdle, long idleTimeout, ConnectionFactory factory) {
+        synchronized (this) {
+            MaintenancePolicy policy = policies.computeIfAbsent(key, k -> new MaintenancePolicy());
+            policy.instances++;
+            policy.maxChannels = maxChannels;
+            policy.minIdle = minIdle;
+            policy.idleTimeout = idleTimeout;
+            policy.factory = factory;
+            if (maintenanceExecutor == null) {
+                maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "connector-ssh-maintenance");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                maintenanceExecutor.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            // Pre-warm the connections right now, do not wait for the next maintenance run
+            maintenanceExecutor.execute(() -> maintain(key));
+        }
+    }
+
+    /**
+     * Connector instance that registered the policy is going away.
+     * When there are no more instances, idle connections for the key are no longer kept established.
+     * They are still closed after the idle timeout.
+     */
+    public synchronized void unregister(String key) {
+        MaintenancePolicy policy = policies.get(key);
+        if (policy != null) {
+            policy.instances--;
+        }
+    }
+
+    private void maintain() {
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<>(policies.keySet());
+        }
+        for (String key : keys) {
+            try {
+                maintain(key);
+            } catch (RuntimeException e) {
+                LOG.warn("Error maintaining shared SSH connections {0}: {1} (ignoring)", SharedConnection.getDescription(key), e.getMessage());
+            }
+        }
+    }
+
+    private void maintain(String key) {
+        List<SharedConnection> toClose = new ArrayList<>();
+        List<SharedConnection> toEstablish = new ArrayList<>();
+        MaintenancePolicy policy;
+        synchronized (this) {
+            policy = policies.get(key);
+            if (policy == null) {
+                return;
+            }
+            int minIdle = policy.instances > 0 ? policy.minIdle : 0;
+            List<SharedConnection> keyConnections = connections.computeIfAbsent(key, k -> new ArrayList<>());
+            long now = System.currentTimeMillis();
+            int idle = 0;
+            for (SharedConnection connection : keyConnections) {
+                if (connection.channels == 0) {
+                    idle++;
+                }
+            }
+            Iterator<SharedConnection> iterator = keyConnections.iterator();
+            while (iterator.hasNext()) {
+                SharedConnection connection = iterator.next();
+                if (connection.channels > 0 || !connection.isEstablished()) {
+                    continue;
+                }
+                if (connection.isBroken()
+                        || policy.idleTimeout > 0 && idle > minIdle && now - connection.lastUsed > policy.idleTimeout) {
+                    iterator.remove();
+                    connection.broken = true;
+                    toClose.add(connection);
+                    idle--;
+                }
+            }
+            for (int i = idle; i < minIdle; i++) {
+                SharedConnection connection = new SharedConnection(key, policy.maxChannels);
+                keyConnections.add(connection);
+                toEstablish.add(connection);
+            }
+            if (keyConnections.isEmpty()) {
+                connections.remove(key);
+                if (policy.instances <= 0) {
+                    policies.remove(key);
+                }
+            }
+        }
+        for (SharedConnection connection : toClose) {
+            LOG.ok("Closing idle shared SSH connection {0}", connection.getDescription());
+            connection.close();
+        }
+        for (SharedConnection connection : toEstablish) {
+            LOG.ok("Establishing shared SSH connection {0} ahead of demand", connection.getDescription());
+            ConnectionFactory factory = policy.factory;
+            try {
+                SshExecutionEngine.submit(() -> {
+                    try {
+                        connection.establish(factory);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Error establishing shared SSH connection {0} ahead of demand: {1}", connection.getDescription(), e.getMessage());
+                        discard(connection);
+                    }
+                    return null;
+                });
+            } catch (ConnectorException e) {
+                LOG.warn("Cannot establish shared SSH connection {0} ahead of demand: {1}", connection.getDescription(), e.getMessage());
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes all shared connections and forgets all maintenance policies. Mostly useful for tests.
+     */
+    public void closeAll() {
+        List<SharedConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            policies.clear();
+            for (List<SharedConnection> keyConnections : connections.values()) {
+                toClose.addAll(keyConnections);
+            }
+            connections.clear();
+        }
+        for (SharedConnection connection : toClose) {
+            connection.broken = true;
+            connection.close();
+        }
+    }
+
+    public synchronized int getConnectionCount(String key) {
+        List<SharedConnection> keyConnections = connections.get(key);
+        return keyConnections == null ? 0 : keyConnections.size();
+    }
+
+    /**
+     * Number of connections for the key that are established and not used by anybody.
+     */
+    public synchronized int getIdleConnectionCount(String key) {
+        List<SharedConnection> keyConnections = connections.get(key);
+        if (keyConnections == null) {
+            return 0;
+        }
+        int idle = 0;
+        for (SharedConnection connection : keyConnections) {
+            if (connection.channels == 0 && connection.isEstablished() && !connection.broken) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    private static class MaintenancePolicy {
+        private int instances = 0;
+        private int maxChannels;
+        private int minIdle;
+        private long idleTimeout;
+        private ConnectionFactory factory;
+    }
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        /**
+         * Returns connected and authenticated SSH client.
+         */
+        SSHClient connect();
+    }
+
+    public static class SharedConnection {
+
+        private final String key;
+        private SSHClient client;
+        private RuntimeException establishError;
+        private boolean established = false;
+
+        // Following fields are guarded by the manager
+        private int channels = 0;
+        private int maxChannels;
+        private volatile boolean broken = false;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private SharedConnection(String key, int maxChannels) {
+            this.key = key;
+            this.maxChannels = maxChannels;
+        }
+
+        public SSHClient getClient() {
+            return client;
+        }
+
+        private void establish(ConnectionFactory factory) {
+            SSHClient newClient = null;
+            RuntimeException error = null;
+            try {
+                newClient = factory.connect();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            synchronized (this) {
+                client = newClient;
+                establishError = error;
+                broken = error != null;
+                established = true;
+                lastUsed = System.currentTimeMillis();
+                notifyAll();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private synchronized boolean isEstablished() {
+            return established;
+        }
+
+        private void awaitEstablished() {
+            RuntimeException error = null;
+            synchronized (this) {
+                while (!established && error == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        error = new ConnectionFailedException("Interrupted while waiting for SSH connection " + getDescription(), e);
+                    }
+                }
+                if (error == null) {
+                    error = establishError;
+                }
+            }
+            if (error != null) {
+                getInstance().release(this);
+                throw error;
+            }
+        }
+
+        private boolean isBroken() {
+            if (broken) {
+                return true;
+            }
+            synchronized (this) {
+                if (!established) {
+                    return false;
+                }
+            }
+            return !client.isConnected() || !client.isAuthenticated() || !client.getTransport().isRunning();
+        }
+
+        private void close() {
+            SSHClient clientToClose;
+            synchronized (this) {
+                clientToClose = client;
+            }
+            if (clientToClose != null && clientToClose.isConnected()) {
+                LOG.ok("Closing shared SSH connection {0}", getDescription());
+                try {
+                    clientToClose.disconnect();
+                } catch (IOException e) {
+                    LOG.warn("Error disconnecting shared SSH connection {0}: {1} (ignoring)", getDescription(), e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Connection key without the credential fingerprint, suitable for logging.
+         */
+        private String getDescription() {
+            return getDescription(key);
+        }
+
+        private static String getDescription(String key) {
+            int i = key.indexOf('#');
+            return i < 0 ? key : key.substring(0, i);
+        }
+
+        @Override
+        public String toString() {
+            return "SharedConnection(" + getDescription() + ", " + channels + "/" + maxChannels + " channels)";
+        }
+    }
+}
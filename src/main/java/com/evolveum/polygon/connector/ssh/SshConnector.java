@@ -16,22 +16,24 @@
 
 package com.evolveum.polygon.connector.ssh;
 
-import com.evolveum.polygon.common.GuardedStringAccessor;
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.Config;
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.common.SSHPacket;
 import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.OpenFailException;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.transport.TransportException;
 import net.schmizz.sshj.transport.verification.HostKeyVerifier;
 import net.schmizz.sshj.userauth.UserAuthException;
 import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
-import net.schmizz.sshj.userauth.password.PasswordUtils;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.ScriptContext;
 import org.identityconnectors.framework.spi.Configuration;
@@ -41,22 +43,86 @@ import org.identityconnectors.framework.spi.operations.ScriptOnResourceOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @ConnectorClass(displayNameKey = "connector.ssh.display", configurationClass = SshConfiguration.class)
 public class SshConnector implements PoolableConnector, TestOp, ScriptOnResourceOp {
 
     private static final Log LOG = Log.getLog(SshConnector.class);
 
+    private static final String KEEPALIVE_REQUEST = "keepalive@openssh.com";
+
+    /**
+     * Operation option with the name of the host group (see hostGroups configuration property).
+     * The script is executed on all the hosts of the group in parallel.
+     */
+    public static final String OPTION_HOST_GROUP = "hostGroup";
+
+    /**
+     * Operation option that executes the script as a batch (Boolean). Each non-blank line of the script text
+     * is a separate script, all of them are executed in a single remote shell (see runScriptsOnResource).
+     * The script returns a list of structured results, one for each line.
+     */
+    public static final String OPTION_BATCH = "batch";
+
+    /**
+     * Durations of the phases of the script that is being executed by the current thread (in nanoseconds).
+     * Collected only for structured results. Connections may be established by other threads (e.g. ahead of demand),
+     * such connection phases are not part of the script execution.
+     */
+    private static final ThreadLocal<Map<SshMetrics.Phase, Long>> SCRIPT_PHASES = new ThreadLocal<>();
+
     private SshConfiguration configuration;
     private HostKeyVerifier hostKeyVerifier;
     private CommandProcessor commandProcessor;
 
     private SSHClient ssh;
+    private SshConnectionManager.SharedConnection sharedConnection = null;
     private Session session = null;
+    private ShellSession shellSession = null;
+
+    private List<SshHost> hosts;
+    private HostSelectionStrategy hostSelectionStrategy;
 
-    private String hostDesc;
+    /**
+     * Host of the last connection used by this connector instance.
+     */
+    private SshHost currentHost;
     private String connectionDesc;
+    private String credentialsFingerprint;
+
+    private Map<String, List<SshHost>> hostGroups;
+
+    /**
+     * Connector instances that execute fan-out scripts, one for each host. They keep their connections
+     * (according to the connection mode) for the next fan-out script.
+     */
+    private final Map<SshHost, SshConnector> hostConnectors = new LinkedHashMap<>();
+
+    /**
+     * Idle connector instances that execute asynchronous scripts. Each of them executes one script at a time.
+     */
+    private final Deque<SshConnector> asyncWorkers = new ConcurrentLinkedDeque<>();
+    private final Queue<Runnable> asyncQueue = new ArrayDeque<>();
+    private int asyncRunning = 0; // guarded by asyncQueue
+    private volatile boolean disposed = false;
+    private boolean maintenanceRegistered = false;
+    private long lastUsed = System.currentTimeMillis();
 
     @Override
     public Configuration getConfiguration() {
@@ -67,97 +133,474 @@ public class SshConnector implements PoolableConnector, TestOp, ScriptOnResource
     public void init(Configuration configuration) {
         LOG.info("Initializing {0} connector instance {1}", this.getClass().getSimpleName(), this);
         this.configuration = (SshConfiguration)configuration;
-        this.hostKeyVerifier = new ConnectorKnownHostsVerifier().parse(this.configuration.getKnownHosts());
+        this.hostKeyVerifier = SshResourceCache.getInstance().getHostKeyVerifier(this.configuration.getKnownHosts());
         this.commandProcessor = new CommandProcessor(this.configuration);
+        this.hosts = SshHost.parse(this.configuration.getHost(), this.configuration.getPort());
+        if (this.hosts.size() == 1) {
+            this.currentHost = this.hosts.get(0);
+        }
+        this.hostSelectionStrategy = StandardHostSelectionStrategy.forName(this.configuration.getHostSelectionStrategy());
+        this.hostGroups = parseHostGroups(this.configuration.getHostGroups(), this.configuration.getPort());
+        String connectionMode = this.configuration.getConnectionMode();
+        if (connectionMode != null && !SshConfiguration.CONNECTION_MODE_EXEC.equals(connectionMode)
+                && !SshConfiguration.CONNECTION_MODE_PERSISTENT.equals(connectionMode)
+                && !SshConfiguration.CONNECTION_MODE_SHARED.equals(connectionMode)) {
+            throw new ConfigurationException("Unknown value of connection mode: " + connectionMode);
+        }
+        String executionMode = this.configuration.getExecutionMode();
+        if (executionMode != null && !SshConfiguration.EXECUTION_MODE_EXEC.equals(executionMode)
+                && !SshConfiguration.EXECUTION_MODE_SHELL.equals(executionMode)) {
+            throw new ConfigurationException("Unknown value of execution mode: " + executionMode);
+        }
+        String outputOverflow = this.configuration.getOutputOverflow();
+        if (outputOverflow != null && !SshConfiguration.OUTPUT_OVERFLOW_TRUNCATE.equals(outputOverflow)
+                && !SshConfiguration.OUTPUT_OVERFLOW_SPOOL.equals(outputOverflow)) {
+            throw new ConfigurationException("Unknown value of output overflow: " + outputOverflow);
+        }
+        if (SshConfiguration.OUTPUT_OVERFLOW_SPOOL.equals(outputOverflow) && SshConfiguration.EXECUTION_MODE_SHELL.equals(executionMode)) {
+            // Output of a command is read from the shell stream up to the sentinel, it is not spooled
+            throw new ConfigurationException("Output overflow " + outputOverflow + " is not supported in " + executionMode + " execution mode");
+        }
+        if (SshConfiguration.EXECUTION_MODE_SHELL.equals(executionMode)
+                && this.configuration.getCommandTimeout() <= 0 && this.configuration.getIdleReadTimeout() <= 0) {
+            // A command that never ends (e.g. unterminated quote) swallows the sentinel, the output would be read forever
+            throw new ConfigurationException("Execution mode " + executionMode + " requires command timeout or idle read timeout");
+        }
+        String resultMode = this.configuration.getResultMode();
+        if (resultMode != null && !SshConfiguration.RESULT_MODE_OUTPUT.equals(resultMode)
+                && !SshConfiguration.RESULT_MODE_STRUCTURED.equals(resultMode)) {
+            throw new ConfigurationException("Unknown value of result mode: " + resultMode);
+        }
+        String errorDetection = this.configuration.getErrorDetection();
+        if (errorDetection != null && !SshConfiguration.ERROR_DETECTION_STDERR.equals(errorDetection)
+                && !SshConfiguration.ERROR_DETECTION_EXIT_STATUS.equals(errorDetection)
+                && !SshConfiguration.ERROR_DETECTION_BOTH.equals(errorDetection)) {
+            throw new ConfigurationException("Unknown value of error detection: " + errorDetection);
+        }
+        int compressionLevel = this.configuration.getCompressionLevel();
+        if (this.configuration.isCompression() && (compressionLevel < 1 || compressionLevel > 9)) {
+            throw new ConfigurationException("Compression level must be from 1 to 9, it is " + compressionLevel);
+        }
+        String fanOutFailureMode = this.configuration.getFanOutFailureMode();
+        if (fanOutFailureMode != null && !SshConfiguration.FAN_OUT_FAILURE_MODE_COLLECT_ALL.equals(fanOutFailureMode)
+                && !SshConfiguration.FAN_OUT_FAILURE_MODE_FAIL_FAST.equals(fanOutFailureMode)) {
+            throw new ConfigurationException("Unknown value of fan-out failure mode: " + fanOutFailureMode);
+        }
+        if (this.configuration.getMetricsListener() != null) {
+            SshMetrics.getInstance().addListener(this.configuration.getMetricsListener());
+        }
+        prepareConnections();
     }
 
-    private void connect() {
-        ssh = new SSHClient();
-        ssh.addHostKeyVerifier(hostKeyVerifier);
-        LOG.ok("Connecting to {0}", getConnectionDesc());
+    private static Map<String, List<SshHost>> parseHostGroups(String[] hostGroups, int defaultPort) {
+        Map<String, List<SshHost>> groups = new LinkedHashMap<>();
+        if (hostGroups == null) {
+            return groups;
+        }
+        for (String hostGroup : hostGroups) {
+            int separator = hostGroup.indexOf('=');
+            if (separator <= 0) {
+                throw new ConfigurationException("Invalid host group, expected name=host1,host2,...: " + hostGroup);
+            }
+            List<SshHost> groupHosts = SshHost.parse(hostGroup.substring(separator + 1), defaultPort);
+            if (groupHosts.isEmpty()) {
+                throw new ConfigurationException("No hosts in host group: " + hostGroup);
+            }
+            groups.put(hostGroup.substring(0, separator).trim(), groupHosts);
+        }
+        return groups;
+    }
+
+    /**
+     * Connector instance that executes fan-out scripts on a single host.
+     */
+    private SshConnector getHostConnector(SshHost host) {
+        SshConnector hostConnector = hostConnectors.get(host);
+        if (hostConnector == null) {
+            hostConnector = createWorker(Collections.singletonList(host), Collections.emptyMap());
+            hostConnectors.put(host, hostConnector);
+        }
+        return hostConnector;
+    }
+
+    /**
+     * Creates connector instance that shares configuration with this instance, but it has its own connection
+     * and session state. It can execute scripts at the same time as this instance.
+     */
+    private SshConnector createWorker(List<SshHost> workerHosts, Map<String, List<SshHost>> workerHostGroups) {
+        SshConnector worker = new SshConnector();
+        worker.configuration = configuration;
+        worker.hostKeyVerifier = hostKeyVerifier;
+        worker.commandProcessor = commandProcessor;
+        worker.hosts = workerHosts;
+        worker.currentHost = workerHosts.size() == 1 ? workerHosts.get(0) : null;
+        worker.hostSelectionStrategy = hostSelectionStrategy;
+        worker.hostGroups = workerHostGroups;
+        worker.prepareConnections();
+        return worker;
+    }
+
+    /**
+     * Establishes connections ahead of demand, according to minIdleConnections and idleConnectionTimeout.
+     * Failure is not fatal here, the connection is established again when it is needed.
+     */
+    private void prepareConnections() {
+        int minIdle = configuration.getMinIdleConnections();
+        int idleTimeout = configuration.getIdleConnectionTimeout();
+        if (isSharedConnection()) {
+            if (minIdle > 0 || idleTimeout > 0) {
+                for (SshHost host : hosts) {
+                    SshConnectionManager.getInstance().register(getSharedConnectionKey(host),
+                            configuration.getMaxChannelsPerConnection(), minIdle, idleTimeout, () -> connect(host));
+                }
+                maintenanceRegistered = true;
+            }
+        } else if (isPersistentConnection() && minIdle > 0) {
+            try {
+                ensureConnected();
+            } catch (RuntimeException e) {
+                LOG.warn("Cannot establish connection to {0} ahead of demand: {1} (ignoring)", getConnectionDesc(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connects to one of the hosts, in the order given by the host selection strategy.
+     * Only failure to connect (or authenticate) moves on to the next host. Once the command is sent to a host,
+     * it is never repeated on another one (it might have been executed already).
+     */
+    private <T> T connectToAnyHost(Function<SshHost, T> connector) {
+        if (hosts.isEmpty()) {
+            throw new ConfigurationException("No host configured");
+        }
+        if (hosts.size() == 1) {
+            return connector.apply(hosts.get(0));
+        }
+        ConnectionFailedException failure = null;
+        for (SshHost host : selectHosts()) {
+            try {
+                T connection = connector.apply(host);
+                setCurrentHost(host);
+                return connection;
+            } catch (ConnectionFailedException e) {
+                LOG.ok("Cannot connect to {0}, trying next host: {1}", host.getDesc(), e.getMessage());
+                if (failure == null) {
+                    failure = new ConnectionFailedException("Cannot connect to any of the hosts " + configuration.getHost()
+                            + ", last error: " + e.getMessage(), e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Hosts ordered by the host selection strategy, hosts that could not be reached recently go last.
+     */
+    private List<SshHost> selectHosts() {
+        List<SshHost> ordered = hostSelectionStrategy.order(hosts);
+        List<SshHost> selected = new ArrayList<>(ordered.size());
+        List<SshHost> unhealthy = null;
+        for (SshHost host : ordered) {
+            if (host.isHealthy(configuration.getCircuitBreakerCoolDown())) {
+                selected.add(host);
+            } else {
+                if (unhealthy == null) {
+                    unhealthy = new ArrayList<>();
+                }
+                unhealthy.add(host);
+            }
+        }
+        if (unhealthy != null) {
+            selected.addAll(unhealthy);
+        }
+        return selected;
+    }
+
+    private void setCurrentHost(SshHost host) {
+        if (currentHost != host) {
+            currentHost = host;
+            connectionDesc = null;
+        }
+    }
+
+    private SSHClient connect(SshHost host) {
+        String connectionDesc = configuration.getUsername() + "@" + host.getDesc();
+        Config sshConfig;
+        if (configuration.isCompression()) {
+            sshConfig = SshCompression.getConfig(configuration.getCompressionLevel(), host.getKey());
+        } else {
+            sshConfig = SshResourceCache.getInstance().getSshConfig();
+        }
+        SSHClient client = new SSHClient(sshConfig);
+        client.addHostKeyVerifier(hostKeyVerifier);
+        client.setConnectTimeout(configuration.getConnectTimeout());
+        client.getTransport().setTimeoutMs(configuration.getAuthTimeout());
+        TimingSocketFactory socketFactory = new TimingSocketFactory();
+        client.setSocketFactory(socketFactory);
+        SshCircuitBreaker circuitBreaker = getCircuitBreaker(host);
+        SshConcurrencyLimiter limiter = getConcurrencyLimiter(host);
+        if (limiter == null) {
+            return connect(host, client, socketFactory, circuitBreaker, connectionDesc);
+        }
+        // Limiter goes first. Circuit breaker permission (which may be the half-open probe) is taken only
+        // when the attempt can proceed immediately, so every permitted attempt records its outcome.
+        long permit = limiter.acquire(configuration.getConcurrencyLimitWait());
+        SshConcurrencyLimiter.Outcome outcome = SshConcurrencyLimiter.Outcome.DROPPED;
+        try {
+            SSHClient connected = connect(host, client, socketFactory, circuitBreaker, connectionDesc);
+            outcome = SshConcurrencyLimiter.Outcome.SUCCESS;
+            return connected;
+        } catch (ConnectionFailedException e) {
+            if (!(e.getCause() instanceof IOException) || e.getCause() instanceof UserAuthException) {
+                // Authentication failure, the host is fine
+                outcome = SshConcurrencyLimiter.Outcome.IGNORED;
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            outcome = SshConcurrencyLimiter.Outcome.IGNORED;
+            throw e;
+        } finally {
+            limiter.release(permit, outcome);
+        }
+    }
+
+    private SSHClient connect(SshHost host, SSHClient client, TimingSocketFactory socketFactory,
+            SshCircuitBreaker circuitBreaker, String connectionDesc) {
+        if (circuitBreaker != null) {
+            circuitBreaker.acquirePermission(configuration.getCircuitBreakerCoolDown());
+        }
+        LOG.ok("Connecting to {0}", connectionDesc);
+        boolean connected = false;
+        long connectStart = System.nanoTime();
         try {
-            ssh.connect(configuration.getHost(), configuration.getPort());
+            client.connect(host.getName(), host.getPort());
+            connected = true;
         } catch (IOException e) {
-            LOG.error("Error creating SSH connection to {0}: {1}", getHostDesc(), e.getMessage());
-            throw new ConnectionFailedException("Error creating SSH connection to " + getHostDesc() + ": " + e.getMessage(), e);
+            LOG.error("Error creating SSH connection to {0}: {1}", host.getDesc(), e.getMessage());
+            throw new ConnectionFailedException("Error creating SSH connection to " + host.getDesc() + ": " + e.getMessage(), e);
+        } finally {
+            if (connected) {
+                host.connectSucceeded();
+            } else {
+                host.connectFailed();
+            }
+            if (circuitBreaker != null) {
+                if (connected) {
+                    circuitBreaker.recordSuccess();
+                } else {
+                    circuitBreaker.recordFailure(configuration.getCircuitBreakerThreshold());
+                }
+            }
+            recordConnect(host.getKey(), socketFactory.getConnectNanos(), System.nanoTime() - connectStart, connected);
+        }
+        long authStart = System.nanoTime();
+        boolean authenticated = false;
+        try {
+            authenticate(client, host.getDesc());
+            authenticated = true;
+        } catch (RuntimeException e) {
+            try {
+                client.disconnect();
+            } catch (IOException de) {
+                LOG.warn("Error disconnecting SSH session for {0}: {1} (ignoring)", connectionDesc, de.getMessage());
+            }
+            throw e;
+        } finally {
+            recordPhase(host.getKey(), null, SshMetrics.Phase.AUTH, authStart, authenticated);
+        }
+        LOG.ok("Authentication to {0} successful", connectionDesc);
+        LOG.info("Connection to {0} fully established", connectionDesc);
+        return client;
+    }
+
+    /**
+     * SSH client connects in one step. TCP connection time is measured by the socket factory, the rest is key exchange.
+     */
+    private void recordConnect(String hostKey, long tcpNanos, long totalNanos, boolean connected) {
+        SshMetrics metrics = SshMetrics.getInstance();
+        if (tcpNanos == 0) {
+            metrics.record(hostKey, null, SshMetrics.Phase.CONNECT, totalNanos, false);
+            recordScriptPhase(SshMetrics.Phase.CONNECT, totalNanos);
+            return;
+        }
+        metrics.record(hostKey, null, SshMetrics.Phase.CONNECT, tcpNanos, true);
+        metrics.record(hostKey, null, SshMetrics.Phase.KEX, totalNanos - tcpNanos, connected);
+        recordScriptPhase(SshMetrics.Phase.CONNECT, tcpNanos);
+        recordScriptPhase(SshMetrics.Phase.KEX, totalNanos - tcpNanos);
+    }
+
+    private void recordPhase(String language, SshMetrics.Phase phase, long startNanos, boolean success) {
+        recordPhase(getHostKey(), language, phase, startNanos, success);
+    }
+
+    private void recordPhase(String hostKey, String language, SshMetrics.Phase phase, long startNanos, boolean success) {
+        long durationNanos = System.nanoTime() - startNanos;
+        SshMetrics.getInstance().record(hostKey, language, phase, durationNanos, success);
+        recordScriptPhase(phase, durationNanos);
+    }
+
+    private static void recordScriptPhase(SshMetrics.Phase phase, long durationNanos) {
+        Map<SshMetrics.Phase, Long> phases = SCRIPT_PHASES.get();
+        if (phases != null) {
+            phases.merge(phase, durationNanos, Long::sum);
         }
-        authenticate();
-        LOG.ok("Authentication to {0} successful", getConnectionDesc());
+    }
+
+    private void recordBytes(String language, String sent, long bytesReceived) {
+        SshMetrics.getInstance().recordBytes(getHostKey(), language, sent.getBytes(StandardCharsets.UTF_8).length, bytesReceived);
+    }
+
+    private SshConcurrencyLimiter getConcurrencyLimiter(SshHost host) {
+        if (configuration.getConcurrencyLimit() <= 0) {
+            return null;
+        }
+        return SshConcurrencyLimiter.forHost(host.getKey(), configuration.getConcurrencyLimit(), configuration.getMaxConcurrencyLimit());
+    }
+
+    private SshCircuitBreaker getCircuitBreaker(SshHost host) {
+        if (configuration.getCircuitBreakerThreshold() <= 0) {
+            return null;
+        }
+        return SshCircuitBreaker.forHost(host.getKey());
+    }
+
+    /**
+     * Makes sure that there is an authenticated SSH connection.
+     * Stale connection (e.g. connection closed by the server) is discarded and re-established.
+     */
+    private void ensureConnected() {
+        if (ssh != null) {
+            if (ssh.isConnected() && ssh.isAuthenticated()) {
+                return;
+            }
+            LOG.ok("Connection to {0} is no longer usable, reconnecting", getConnectionDesc());
+            disconnect();
+        }
+        ssh = connectToAnyHost(this::connect);
+    }
+
+    /**
+     * Returns connected and authenticated SSH client, according to the connection mode.
+     * The connection must be returned by calling releaseConnection().
+     */
+    private SSHClient acquireConnection() {
+        if (isSharedConnection()) {
+            sharedConnection = connectToAnyHost(host -> SshConnectionManager.getInstance().acquire(
+                    getSharedConnectionKey(host), configuration.getMaxChannelsPerConnection(), () -> connect(host)));
+            return sharedConnection.getClient();
+        }
+        ensureConnected();
+        return ssh;
+    }
+
+    private void releaseConnection(boolean broken) {
+        lastUsed = System.currentTimeMillis();
+        if (sharedConnection != null) {
+            if (broken) {
+                SshConnectionManager.getInstance().invalidate(sharedConnection);
+            } else {
+                SshConnectionManager.getInstance().release(sharedConnection);
+            }
+            sharedConnection = null;
+        } else if (broken || !isPersistentConnection()) {
+            disconnect();
+        }
+    }
+
+    private void startSession(SSHClient client, String language) {
+        long start = System.nanoTime();
+        boolean started = false;
+        try {
+            startSession(client);
+            started = true;
+        } finally {
+            recordPhase(language, SshMetrics.Phase.SESSION, start, started);
+        }
+    }
+
+    private void startSession(SSHClient client) {
+        try {
+            session = client.startSession();
+        } catch (OpenFailException e) {
+            if (sharedConnection != null) {
+                // Most likely the server limit of sessions per connection (MaxSessions) was reached.
+                // Try once again, on another connection.
+                LOG.ok("Server refused to open SSH session for {0} on a shared connection: {1}", getConnectionDesc(), e.getMessage());
+                SshConnectionManager.getInstance().limitChannels(sharedConnection);
+                releaseConnection(false);
+                startSession(acquireConnection(), e);
+                return;
+            }
+            throw sessionFailed(e);
+        } catch (ConnectionException | TransportException e) {
+            throw sessionFailed(e);
+        }
+    }
+
+    private void startSession(SSHClient client, OpenFailException previousError) {
         try {
-            session = ssh.startSession();
+            session = client.startSession();
         } catch (ConnectionException | TransportException e) {
-            LOG.error("Communication error while creating SSH session for {1} failed: {2}", getConnectionDesc(), e.getMessage());
-            throw new ConnectionFailedException("Communication error while creating SSH session for "+getConnectionDesc()+" failed: " + e.getMessage(), e);
+            e.addSuppressed(previousError);
+            throw sessionFailed(e);
         }
-        LOG.info("Connection to {0} fully established", getConnectionDesc());
     }
 
-    private void authenticate() {
+    private ConnectionFailedException sessionFailed(Exception e) {
+        LOG.error("Communication error while creating SSH session for {0} failed: {1}", getConnectionDesc(), e.getMessage());
+        return new ConnectionFailedException("Communication error while creating SSH session for "+getConnectionDesc()+" failed: " + e.getMessage(), e);
+    }
+
+    private void authenticate(SSHClient client, String hostDesc) {
         switch (configuration.getAuthenticationScheme()) {
             case SshConfiguration.AUTHENTICATION_SCHEME_PASSWORD:
-                authenticatePassword();
+                authenticatePassword(client, hostDesc);
                 break;
             case SshConfiguration.AUTHENTICATION_SCHEME_PUBLIC_KEY:
-                authenticatePublicKey();
+                authenticatePublicKey(client, hostDesc);
                 break;
             default:
                 throw new ConfigurationException("Unknown authentication scheme '"+configuration.getAuthenticationScheme()+"'");
         }
     }
 
-    private void authenticatePassword() {
+    private void authenticatePassword(SSHClient client, String hostDesc) {
         GuardedString password = configuration.getPassword();
         if (password == null) {
             throw new ConfigurationException("No authentication password configured '"+configuration.getAuthenticationScheme()+"'");
         }
-        LOG.ok("Authenticating to {0} using password authentication", getConnectionDesc());
+        LOG.ok("Authenticating to {0} using password authentication", configuration.getUsername() + "@" + hostDesc);
         password.access( passwordChars -> {
             try {
-                ssh.authPassword(configuration.getUsername(), passwordChars);
+                client.authPassword(configuration.getUsername(), passwordChars);
             } catch (UserAuthException e) {
-                LOG.error("SSH password authentication as {0} to {1} failed: {2}", configuration.getUsername(), getHostDesc(), e.getMessage());
-                throw new ConnectionFailedException("SSH password authentication as "+configuration.getUsername()+" to "+getHostDesc()+" failed: " + e.getMessage(), e);
+                LOG.error("SSH password authentication as {0} to {1} failed: {2}", configuration.getUsername(), hostDesc, e.getMessage());
+                throw new ConnectionFailedException("SSH password authentication as "+configuration.getUsername()+" to "+hostDesc+" failed: " + e.getMessage(), e);
             } catch (TransportException e) {
-                LOG.error("Communication error during SSH password authentication as {0} to {1} failed: {2}", configuration.getUsername(), getHostDesc(), e.getMessage());
-                throw new ConnectionFailedException("Communication error during SSH public key authentication as "+configuration.getUsername()+" to "+getHostDesc()+" failed: " + e.getMessage(), e);
+                LOG.error("Communication error during SSH password authentication as {0} to {1} failed: {2}", configuration.getUsername(), hostDesc, e.getMessage());
+                throw new ConnectionFailedException("Communication error during SSH public key authentication as "+configuration.getUsername()+" to "+hostDesc+" failed: " + e.getMessage(), e);
             }
         });
     }
 
-    private void authenticatePublicKey() {
-        LOG.ok("Authenticating to {0} using public key authentication", getConnectionDesc());
+    private void authenticatePublicKey(SSHClient client, String hostDesc) {
+        LOG.ok("Authenticating to {0} using public key authentication", configuration.getUsername() + "@" + hostDesc);
         try {
-            GuardedStringAccessor privateKey = new GuardedStringAccessor();
-            GuardedStringAccessor passphrase = new GuardedStringAccessor();
-
             if (configuration.getPrivateKey() != null) {
-                configuration.getPrivateKey().access(privateKey);
-            }
-            if (configuration.getPassphrase() != null) {
-                configuration.getPassphrase().access(passphrase);
-            }
-
-            if (privateKey.getClearChars() != null) {
-                KeyProvider keyProvider;
-                try {
-                    if (passphrase.getClearChars() != null) {
-                        keyProvider = ssh.loadKeys(privateKey.getClearString(), null, PasswordUtils.createOneOff(passphrase.getClearChars()));
-                    } else {
-                        keyProvider = ssh.loadKeys(privateKey.getClearString(), null, null);
-                    }
-                } catch (IOException e) {
-                    throw new ConfigurationException("Error parsing private key for SSH public key authentication", e);
-                }
-                ssh.authPublickey(configuration.getUsername(), keyProvider);
+                // Decoding (and decrypting) the key is expensive, it is done only once for all connector instances
+                KeyProvider keyProvider = SshResourceCache.getInstance().getKeyProvider(configuration.getPrivateKey(), configuration.getPassphrase());
+                client.authPublickey(configuration.getUsername(), keyProvider);
             } else {
-                ssh.authPublickey(configuration.getUsername());
+                client.authPublickey(configuration.getUsername());
             }
         } catch (UserAuthException e) {
-            LOG.error(e, "SSH public key authentication as {0} to {1} failed: {2}", configuration.getUsername(), getHostDesc(), e.getMessage());
-            throw new ConnectionFailedException("SSH public key authentication as "+configuration.getUsername()+" to "+getHostDesc()+" failed: " + e.getMessage(), e);
+            LOG.error(e, "SSH public key authentication as {0} to {1} failed: {2}", configuration.getUsername(), hostDesc, e.getMessage());
+            throw new ConnectionFailedException("SSH public key authentication as "+configuration.getUsername()+" to "+hostDesc+" failed: " + e.getMessage(), e);
         } catch (TransportException e) {
-            LOG.error(e, "Communication error during SSH public key authentication as {0} to {1} failed: {2}", configuration.getUsername(), getHostDesc(), e.getMessage());
-            throw new ConnectionFailedException("Communication error during SSH public key authentication as "+configuration.getUsername()+" to "+getHostDesc()+" failed: " + e.getMessage(), e);
+            LOG.error(e, "Communication error during SSH public key authentication as {0} to {1} failed: {2}", configuration.getUsername(), hostDesc, e.getMessage());
+            throw new ConnectionFailedException("Communication error during SSH public key authentication as "+configuration.getUsername()+" to "+hostDesc+" failed: " + e.getMessage(), e);
         }
     }
 
@@ -168,15 +611,27 @@ public class SshConnector implements PoolableConnector, TestOp, ScriptOnResource
         return connectionDesc;
     }
 
+    /**
+     * Host and port of the current host, used as a key of per-host state and statistics.
+     */
+    private String getHostKey() {
+        return currentHost != null ? currentHost.getKey() : configuration.getHost() + ":" + configuration.getPort();
+    }
+
     private String getHostDesc() {
-        if (hostDesc == null) {
-            // TODO: port
-            hostDesc = configuration.getHost();
-        }
-        return hostDesc;
+        // Before the first connection to one of several hosts, all of them
+        return currentHost != null ? currentHost.getDesc() : configuration.getHost();
     }
 
-    private void disconnect() {
+    private void closeSession() {
+        closeSession(session);
+        session = null;
+    }
+
+    /**
+     * Closes the session, but it does not forget it. May be called from another thread, e.g. when a command timed out.
+     */
+    private void closeSession(Session session) {
         if (session != null && session.isOpen()) {
             LOG.ok("Closing session to {0}", getConnectionDesc());
             try {
@@ -184,8 +639,11 @@ public class SshConnector implements PoolableConnector, TestOp, ScriptOnResource
             } catch (ConnectionException | TransportException e) {
                 LOG.warn("Error closing SSH session for {0}: {1} (ignoring)", getConnectionDesc(), e.getMessage());
             }
-            session = null;
         }
+    }
+
+    private void disconnect() {
+        closeSession();
         if (ssh != null && ssh.isConnected()) {
             LOG.ok("Disconnecting from {0}", getConnectionDesc());
             try {
@@ -198,101 +656,817 @@ public class SshConnector implements PoolableConnector, TestOp, ScriptOnResource
         ssh = null;
     }
 
+    private boolean isPersistentConnection() {
+        return SshConfiguration.CONNECTION_MODE_PERSISTENT.equals(configuration.getConnectionMode());
+    }
+
+    private boolean isShellExecution() {
+        return SshConfiguration.EXECUTION_MODE_SHELL.equals(configuration.getExecutionMode());
+    }
+
+    private boolean isStructuredResult() {
+        return SshConfiguration.RESULT_MODE_STRUCTURED.equals(configuration.getResultMode());
+    }
+
+    private boolean isSharedConnection() {
+        return SshConfiguration.CONNECTION_MODE_SHARED.equals(configuration.getConnectionMode());
+    }
+
+    /**
+     * Key of the connection in the shared connection manager.
+     * Only connector instances that would create equivalent connections may share them.
+     * Therefore the key contains fingerprint of credentials and known hosts, and the transport settings (compression).
+     */
+    private String getSharedConnectionKey(SshHost host) {
+        if (credentialsFingerprint == null) {
+            credentialsFingerprint = SshResourceCache.fingerprint(configuration.getPassword(),
+                    configuration.getPrivateKey(), configuration.getPassphrase(), configuration.getKnownHosts());
+        }
+        String transport = configuration.isCompression() ? "zlib" + configuration.getCompressionLevel() : "none";
+        return configuration.getUsername() + "@" + host.getKey() + "/" + configuration.getAuthenticationScheme()
+                + "/" + transport + "#" + credentialsFingerprint;
+    }
+
     @Override
     public void dispose() {
+        if (shellSession != null) {
+            closeShell(false);
+        }
+        if (sharedConnection != null) {
+            releaseConnection(false);
+        }
         disconnect();
+        for (SshConnector hostConnector : hostConnectors.values()) {
+            hostConnector.dispose();
+        }
+        hostConnectors.clear();
+        disposed = true;
+        disposeAsyncWorkers();
+        if (maintenanceRegistered) {
+            for (SshHost host : hosts) {
+                SshConnectionManager.getInstance().unregister(getSharedConnectionKey(host));
+            }
+            maintenanceRegistered = false;
+        }
     }
 
     @Override
     public void test() {
         LOG.info("Test {0} connector instance {1}", this.getClass().getSimpleName(), this);
-        checkAlive();
+        if (shellSession != null) {
+            // The connection is used by the remote shell, just check it
+            SSHClient shellClient = sharedConnection != null ? sharedConnection.getClient() : ssh;
+            if (!isConnectionAlive(shellClient)) {
+                closeShell(true);
+                throw new ConnectionFailedException("SSH connection to " + getConnectionDesc() + " is not alive");
+            }
+            return;
+        }
+        SSHClient client = acquireConnection();
+        boolean alive = false;
+        try {
+            alive = isConnectionAlive(client);
+        } finally {
+            releaseConnection(!alive);
+        }
+        if (!alive) {
+            throw new ConnectionFailedException("SSH connection to " + getConnectionDesc() + " is not alive");
+        }
     }
 
+    /**
+     * Checks whether the open SSH connection (if any) is still usable.
+     * No remote command is executed. Just a keepalive global request is sent to the server.
+     * Broken connection is closed and the exception tells the connector pool to discard this instance.
+     * Connections of idle asynchronous workers are checked too, but they do not make this instance fail.
+     */
     @Override
     public void checkAlive() {
-//        TODO;
+        checkAsyncWorkers();
+        if (shellSession != null && !shellSession.isOpen()) {
+            // Dead shell does not mean dead connector. New shell is started for the next command.
+            LOG.ok("Remote shell on {0} is closed", getConnectionDesc());
+            closeShell(false);
+        }
+        if (ssh == null) {
+            // No open connection, nothing to check. Connection is created on demand.
+            return;
+        }
+        int idleTimeout = configuration.getIdleConnectionTimeout();
+        if (idleTimeout > 0 && configuration.getMinIdleConnections() <= 0
+                && System.currentTimeMillis() - lastUsed > idleTimeout) {
+            LOG.ok("Connection to {0} was not used for {1} ms, closing it", getConnectionDesc(), System.currentTimeMillis() - lastUsed);
+            if (shellSession != null) {
+                closeShell(false);
+            }
+            disconnect();
+            return;
+        }
+        if (!isConnectionAlive(ssh)) {
+            LOG.ok("Connection to {0} is not alive", getConnectionDesc());
+            disconnect();
+            throw new ConnectionFailedException("SSH connection to " + getConnectionDesc() + " is not alive");
+        }
+    }
+
+    private boolean isConnectionAlive(SSHClient client) {
+        if (!client.isConnected() || !client.isAuthenticated() || !client.getTransport().isRunning()) {
+            return false;
+        }
+        try {
+            Promise<SSHPacket, ConnectionException> reply = client.getConnection().sendGlobalRequest(KEEPALIVE_REQUEST, true, new byte[0]);
+            if (reply.tryRetrieve(configuration.getCheckAliveTimeout(), TimeUnit.MILLISECONDS) == null) {
+                LOG.ok("No reply to keepalive request from {0} in {1}ms", getConnectionDesc(), configuration.getCheckAliveTimeout());
+                return false;
+            }
+            return true;
+        } catch (ConnectionException e) {
+            // Servers usually do not know the request and they reply with a failure. That is still a reply.
+            // But the same exception is used when the transport dies while we are waiting.
+            return client.isConnected() && client.getTransport().isRunning();
+        } catch (TransportException e) {
+            LOG.ok("Error sending keepalive request to {0}: {1}", getConnectionDesc(), e.getMessage());
+            return false;
+        }
     }
 
     @Override
     public Object runScriptOnResource(ScriptContext scriptCtx, OperationOptions options) {
+        long start = System.nanoTime();
+        Object hostGroup = getOption(options, OPTION_HOST_GROUP);
+        if (isBatch(options, hostGroup)) {
+            return runBatch(scriptCtx, options);
+        }
         String scriptLanguage = scriptCtx.getScriptLanguage();
         String processedCommand = commandProcessor.process(scriptCtx);
 
-        OperationLog.log("{0} Script REQ {1}: {2}", getConnectionDesc(), scriptLanguage, processedCommand);
+        if (hostGroup != null) {
+            return runScriptOnHostGroup(hostGroup.toString(), processedCommand, scriptLanguage);
+        }
+        return runProcessedScript(processedCommand, scriptLanguage, start);
+    }
 
-        String output;
+    /**
+     * Executes the script asynchronously, the calling thread does not wait for the network.
+     * The script is processed (and the arguments are checked) in the calling thread, then it is executed
+     * in SshExecutionEngine, in virtual thread if possible. Results and failures are the same as for runScriptOnResource.
+     *
+     * Several asynchronous scripts of the same connector instance may be executed at the same time
+     * (up to maxAsyncOperations), each of them uses its own SSH session. Other scripts wait in a queue,
+     * they do not occupy any thread while they wait. The method itself must not be called
+     * concurrently with other operations of this connector instance, as any other connector operation.
+     */
+    public CompletableFuture<Object> runScriptOnResourceAsync(ScriptContext scriptCtx, OperationOptions options) {
+        long start = System.nanoTime();
+        Object hostGroup = getOption(options, OPTION_HOST_GROUP);
+        boolean batch = isBatch(options, hostGroup);
+        String scriptLanguage = scriptCtx.getScriptLanguage();
+        String processedCommand = batch ? null : commandProcessor.process(scriptCtx);
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        submitAsync(() -> {
+            SshConnector worker = null;
+            try {
+                worker = takeAsyncWorker();
+                if (batch) {
+                    result.complete(worker.runBatch(scriptCtx, options));
+                } else if (hostGroup != null) {
+                    result.complete(worker.runScriptOnHostGroup(hostGroup.toString(), processedCommand, scriptLanguage));
+                } else {
+                    result.complete(worker.runProcessedScript(processedCommand, scriptLanguage, start));
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                if (worker != null) {
+                    releaseWorker(worker);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static Object getOption(OperationOptions options, String name) {
+        return options != null && options.getOptions() != null ? options.getOptions().get(name) : null;
+    }
+
+    private static boolean isBatch(OperationOptions options, Object hostGroup) {
+        if (!Boolean.TRUE.equals(getOption(options, OPTION_BATCH))) {
+            return false;
+        }
+        if (hostGroup != null) {
+            throw new ConnectorException("Batch script cannot be executed on a host group");
+        }
+        return true;
+    }
+
+    /**
+     * Starts the asynchronous script, or puts it to the queue if there are already maxAsyncOperations scripts running.
+     */
+    private void submitAsync(Runnable script) {
+        synchronized (asyncQueue) {
+            if (asyncRunning >= Math.max(configuration.getMaxAsyncOperations(), 1)) {
+                asyncQueue.add(script);
+                return;
+            }
+            asyncRunning++;
+        }
+        startAsync(script);
+    }
+
+    private void startAsync(Runnable script) {
+        SshExecutionEngine.executeOperation(() -> {
+            try {
+                script.run();
+            } finally {
+                asyncFinished();
+            }
+        });
+    }
+
+    /**
+     * Starts the next queued script in place of the finished one.
+     */
+    private void asyncFinished() {
+        Runnable next;
+        synchronized (asyncQueue) {
+            next = asyncQueue.poll();
+            if (next == null) {
+                asyncRunning--;
+                return;
+            }
+        }
+        startAsync(next);
+    }
+
+    /**
+     * Idle worker for asynchronous script, or a new one. The connection of the idle worker is checked
+     * in the same way as the connection of a pooled connector instance (see checkAlive).
+     */
+    private SshConnector takeAsyncWorker() {
+        SshConnector worker = asyncWorkers.poll();
+        if (worker == null) {
+            return createWorker(hosts, hostGroups);
+        }
         try {
+            worker.checkAlive();
+        } catch (ConnectionFailedException e) {
+            // The dead connection was closed, new one will be established
+            LOG.ok("Connection of asynchronous worker is not alive, reconnecting: {0}", e.getMessage());
+        }
+        return worker;
+    }
 
-            output = exec(processedCommand);
+    /**
+     * Applies checkAlive rules to the connections of idle asynchronous workers, so they do not keep idle or dead
+     * connections open until the connector instance is disposed. Workers with dead connections are dropped.
+     * The least recently used workers are checked first, the order of the workers is kept.
+     */
+    private void checkAsyncWorkers() {
+        for (int i = asyncWorkers.size(); i > 0; i--) {
+            SshConnector worker = asyncWorkers.pollLast();
+            if (worker == null) {
+                // Taken by asynchronous scripts in the meantime
+                return;
+            }
+            try {
+                worker.checkAlive();
+            } catch (ConnectionFailedException e) {
+                worker.dispose();
+                continue;
+            }
+            asyncWorkers.offerFirst(worker);
+        }
+    }
 
+    private void releaseWorker(SshConnector worker) {
+        asyncWorkers.push(worker);
+        if (disposed) {
+            // This instance was disposed while the script was running
+            disposeAsyncWorkers();
+        }
+    }
+
+    private void disposeAsyncWorkers() {
+        SshConnector worker;
+        while ((worker = asyncWorkers.poll()) != null) {
+            worker.dispose();
+        }
+    }
+
+    /**
+     * Executes the script on all the hosts of the group in parallel, each host by its own connector instance.
+     * Returns per-host results by host (host:port).
+     */
+    private Map<String, Map<String, Object>> runScriptOnHostGroup(String hostGroup, String processedCommand, String scriptLanguage) {
+        List<SshHost> groupHosts = hostGroups.get(hostGroup);
+        if (groupHosts == null) {
+            throw new ConnectorException("Unknown host group: " + hostGroup);
+        }
+        OperationLog.log("{0} Script fan-out REQ {1}: {2} hosts", hostGroup, scriptLanguage, groupHosts.size());
+        Map<String, Supplier<Map<String, Object>>> tasks = new LinkedHashMap<>();
+        for (SshHost host : groupHosts) {
+            SshConnector hostConnector = getHostConnector(host);
+            tasks.put(host.getKey(), () -> hostConnector.runScriptOnHost(processedCommand, scriptLanguage));
+        }
+        Map<String, Map<String, Object>> results = FanOutExecutor.execute(tasks, configuration.getFanOutParallelism(),
+                SshConfiguration.FAN_OUT_FAILURE_MODE_FAIL_FAST.equals(configuration.getFanOutFailureMode()));
+        OperationLog.log("{0} Script fan-out RES: {1} results", hostGroup, results.size());
+        return results;
+    }
+
+    private Map<String, Object> runScriptOnHost(String processedCommand, String scriptLanguage) {
+        long start = System.nanoTime();
+        Map<String, Object> result = new LinkedHashMap<>();
+        try {
+            Object output = runProcessedScript(processedCommand, scriptLanguage, start);
+            boolean success = !(output instanceof Map) || !Boolean.FALSE.equals(((Map<?, ?>) output).get(CommandResult.KEY_SUCCESS));
+            result.put(CommandResult.KEY_SUCCESS, success);
+            result.put(CommandResult.KEY_RESULT, output);
+        } catch (RuntimeException e) {
+            result.put(CommandResult.KEY_SUCCESS, false);
+            result.put(CommandResult.KEY_ERROR, e.getMessage());
+        }
+        result.put(CommandResult.KEY_DURATION, (System.nanoTime() - start) / 1e6);
+        return result;
+    }
+
+    private Object runProcessedScript(String processedCommand, String scriptLanguage, long start) {
+        if (OperationLog.isLogOperations()) {
+            OperationLog.log("{0} Script REQ {1}: {2}", getConnectionDesc(), scriptLanguage,
+                    OperationLog.abbreviate(processedCommand, configuration.getDiagnosticLogMaxLength()));
+        }
+
+        boolean structured = isStructuredResult();
+        if (structured) {
+            SCRIPT_PHASES.set(new EnumMap<>(SshMetrics.Phase.class));
+        }
+        boolean success = false;
+        try {
+            Object result = isShellExecution() ? runScriptInShell(processedCommand, scriptLanguage, start) : runScriptInSession(processedCommand, scriptLanguage, start);
+            success = true;
+            return result;
+        } finally {
+            if (structured) {
+                SCRIPT_PHASES.remove();
+            }
+            logIfSlow(scriptLanguage, processedCommand, start, success);
+        }
+    }
+
+    private void logIfSlow(String scriptLanguage, String processedCommand, long startNanos, boolean success) {
+        int threshold = configuration.getSlowScriptThreshold();
+        if (threshold <= 0) {
+            return;
+        }
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (durationMillis > threshold) {
+            OperationLog.slow(getConnectionDesc(), scriptLanguage, durationMillis, success,
+                    OperationLog.abbreviate(processedCommand, configuration.getDiagnosticLogMaxLength()));
+        }
+    }
+
+    private Object runScriptInSession(String processedCommand, String scriptLanguage, long startNanos) {
+        Execution execution;
+        try {
+
+            execution = exec(processedCommand, scriptLanguage);
+
+        } catch (OperationTimeoutException e) {
+            OperationLog.error("{0} Script ERR {1}", getConnectionDesc(), OperationLog.abbreviate(e.getMessage(), configuration.getDiagnosticLogMaxLength()));
+            throw e;
         } catch (Exception e) {
-            OperationLog.error("{0} Script ERR {1}", getConnectionDesc(), e.getMessage());
+            OperationLog.error("{0} Script ERR {1}", getConnectionDesc(), OperationLog.abbreviate(e.getMessage(), configuration.getDiagnosticLogMaxLength()));
             throw new ConnectorException("Script execution failed: "+e.getMessage(), e);
         }
 
-        OperationLog.log("{0} Script RES: {1}", getConnectionDesc(), (output==null||output.isEmpty())?"no output":("output "+output.length()+" chars"));
-        LOG.ok("Script returned output\n{0}", output);
+        OutputCollector output = execution.output;
+        boolean failed = isFailed(execution.error, execution.exitStatus);
+        if (failed && !isStructuredResult()) {
+            output.discard();
+            int maxLength = configuration.getDiagnosticLogMaxLength();
+            String error = OperationLog.abbreviate(execution.error, maxLength);
+            LOG.error("Error executing SSH command on {0}: exit status {1}, exit signal {2}, exit error message {3}\ncommand: {4}\noutput: {5}\nerror: {6}",
+                    getConnectionDesc(), execution.exitStatus, execution.exitSignal, execution.exitErrorMessage,
+                    OperationLog.abbreviate(processedCommand, maxLength), output.toString(maxLength), error);
+            OperationLog.error("{0} Script ERR {1}", getConnectionDesc(), error);
+            throw new ConnectorException("Script execution failed: " + getFailureMessage(execution.error, execution.exitStatus));
+        }
+
+        if (OperationLog.isLogOperations()) {
+            OperationLog.log("{0} Script RES: {1}", getConnectionDesc(), output.getTotalBytes() == 0 ? "no output" : ("output " + output.getTotalBytes() + " bytes"
+                    + (output.isTruncated() ? " (truncated)" : "") + (output.isSpooled() ? " (spooled)" : "")));
+        }
+        if (LOG.isOk()) {
+            LOG.ok("Script returned output\n{0}", output.toString(configuration.getDiagnosticLogMaxLength()));
+        }
+
+        if (isStructuredResult()) {
+            // Spool file is passed as a path, so the result contains only simple types
+            String outputFile = output.isSpooled() ? output.getSpoolFile().getAbsolutePath() : null;
+            return structuredResult(output.isSpooled() ? null : output.toString(), outputFile, execution.error,
+                    output.getTotalBytes(), execution.errorBytes, output.isTruncated(), execution.exitStatus,
+                    execution.exitSignal, !failed, startNanos);
+        }
+        return output.getResult();
+    }
 
+    /**
+     * Whether the script failed, according to the error detection policy.
+     */
+    private boolean isFailed(String error, Integer exitStatus) {
+        boolean errorOutput = !error.isEmpty();
+        boolean errorStatus = exitStatus != null && exitStatus != 0;
+        String errorDetection = configuration.getErrorDetection();
+        if (SshConfiguration.ERROR_DETECTION_EXIT_STATUS.equals(errorDetection)) {
+            return errorStatus;
+        }
+        if (SshConfiguration.ERROR_DETECTION_BOTH.equals(errorDetection)) {
+            return errorOutput || errorStatus;
+        }
+        return errorOutput;
+    }
+
+    private String getFailureMessage(String error, Integer exitStatus) {
+        if (!error.isEmpty()) {
+            return "Error executing SSH command: " + error;
+        }
+        return "SSH command failed with exit status " + exitStatus;
+    }
+
+    /**
+     * Result of the script for "structured" result mode. Only simple types are used, so the result can be passed
+     * to remote connector server clients: spooled output is returned as a path of the spool file (outputFile),
+     * output itself is null then. Durations are in milliseconds.
+     */
+    private Map<String, Object> structuredResult(String output, String outputFile, String error, long outputBytes, long errorBytes,
+            boolean truncated, Integer exitStatus, String exitSignal, boolean success, long startNanos) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(CommandResult.KEY_SUCCESS, success);
+        result.put(CommandResult.KEY_EXIT_STATUS, exitStatus);
+        result.put(CommandResult.KEY_EXIT_SIGNAL, exitSignal);
+        result.put(CommandResult.KEY_STDOUT, output);
+        if (outputFile != null) {
+            result.put(CommandResult.KEY_STDOUT_FILE, outputFile);
+        }
+        result.put(CommandResult.KEY_STDERR, error);
+        result.put(CommandResult.KEY_STDOUT_BYTES, outputBytes);
+        result.put(CommandResult.KEY_STDERR_BYTES, errorBytes);
+        result.put(CommandResult.KEY_TRUNCATED, truncated);
+        Map<String, Object> durations = new LinkedHashMap<>();
+        Map<SshMetrics.Phase, Long> phases = SCRIPT_PHASES.get();
+        if (phases != null) {
+            for (Map.Entry<SshMetrics.Phase, Long> phase : phases.entrySet()) {
+                durations.put(phase.getKey().name().toLowerCase(), phase.getValue() / 1e6);
+            }
+        }
+        durations.put(CommandResult.KEY_TOTAL, (System.nanoTime() - startNanos) / 1e6);
+        result.put(CommandResult.KEY_DURATIONS, durations);
+        return result;
+    }
+
+    private Object runScriptInShell(String processedCommand, String scriptLanguage, long startNanos) {
+        CommandResult result;
+        try {
+
+            result = runInShell(ShellSession.Dialect.forLanguage(scriptLanguage), scriptLanguage, shell -> shell.execute(processedCommand));
+
+        } catch (OperationTimeoutException e) {
+            OperationLog.error("{0} Script ERR {1}", getConnectionDesc(), OperationLog.abbreviate(e.getMessage(), configuration.getDiagnosticLogMaxLength()));
+            throw e;
+        } catch (Exception e) {
+            OperationLog.error("{0} Script ERR {1}", getConnectionDesc(), OperationLog.abbreviate(e.getMessage(), configuration.getDiagnosticLogMaxLength()));
+            throw new ConnectorException("Script execution failed: "+e.getMessage(), e);
+        }
+
+        recordBytes(scriptLanguage, processedCommand, result.getOutputBytes() + result.getErrorBytes());
+
+        // Same rule as in exec mode
+        boolean failed = isFailed(result.getError(), result.getExitStatus());
+        if (failed && !isStructuredResult()) {
+            String error = OperationLog.abbreviate(result.getError(), configuration.getDiagnosticLogMaxLength());
+            LOG.error("Error executing command in remote shell on {0}: {1}, exit status {2}", getConnectionDesc(), error, result.getExitStatus());
+            OperationLog.error("{0} Script ERR {1}", getConnectionDesc(), error);
+            throw new ConnectorException("Script execution failed: " + getFailureMessage(result.getError(), result.getExitStatus()));
+        }
+
+        String output = result.getOutput();
+        if (OperationLog.isLogOperations()) {
+            OperationLog.log("{0} Script RES: {1}", getConnectionDesc(), result.getOutputBytes() == 0 ? "no output" : ("output " + result.getOutputBytes() + " bytes"
+                    + (result.isTruncated() ? " (truncated)" : "")));
+        }
+        if (LOG.isOk()) {
+            LOG.ok("Script returned output\n{0}", OperationLog.abbreviate(output, configuration.getDiagnosticLogMaxLength()));
+        }
+
+        if (isStructuredResult()) {
+            // The shell does not tell signals, the command killed by a signal just has exit status over 128
+            return structuredResult(output, null, result.getError(), result.getOutputBytes(), result.getErrorBytes(),
+                    result.isTruncated(), result.getExitStatus(), null, !failed, startNanos);
+        }
         return output;
     }
 
-    // Exec can be run only once in each session. We need to explicitly connect and disconnect each time.
-    private String exec(String processedCommand) {
+    /**
+     * Executes several scripts in a single remote shell, one after another.
+     * This avoids the overhead of opening new SSH session (and possibly new connection) for each script.
+     *
+     * All the scripts are processed by the command processor (as in runScriptOnResource),
+     * then they are sent to the shell at once, each of them followed by a unique sentinel.
+     * The output of the shell is split back into per-script results, including exit status of each script.
+     * Unlike runScriptOnResource, the error output of a script does not cause an exception,
+     * it is returned in the script result.
+     *
+     * All the scripts must be in the same language. PowerShell scripts must be single-line.
+     */
+    public List<CommandResult> runScriptsOnResource(List<ScriptContext> scriptCtxs, OperationOptions options) {
+        if (scriptCtxs.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String scriptLanguage = scriptCtxs.get(0).getScriptLanguage();
+        ShellSession.Dialect dialect = ShellSession.Dialect.forLanguage(scriptLanguage);
+        List<String> processedCommands = new ArrayList<>(scriptCtxs.size());
+        for (ScriptContext scriptCtx : scriptCtxs) {
+            if (ShellSession.Dialect.forLanguage(scriptCtx.getScriptLanguage()) != dialect) {
+                throw new ConnectorException("All scripts in a batch must be in the same language, found "
+                        + scriptCtxs.get(0).getScriptLanguage() + " and " + scriptCtx.getScriptLanguage());
+            }
+            String processedCommand = commandProcessor.process(scriptCtx);
+            if (processedCommand == null) {
+                throw new ConnectorException("No script text in batch script");
+            }
+            processedCommands.add(processedCommand);
+        }
+
+        OperationLog.log("{0} Script batch REQ {1}: {2} scripts", getConnectionDesc(), dialect, processedCommands.size());
+
+        List<CommandResult> results;
+        if (isShellExecution()) {
+            try {
+                results = runInShell(dialect, scriptLanguage, shell -> shell.executeBatch(processedCommands));
+            } catch (RuntimeException e) {
+                OperationLog.error("{0} Script batch ERR {1}", getConnectionDesc(), OperationLog.abbreviate(e.getMessage(), configuration.getDiagnosticLogMaxLength()));
+                throw e;
+            }
+            recordBatchBytes(scriptLanguage, processedCommands, results);
+            OperationLog.log("{0} Script batch RES: {1} results", getConnectionDesc(), results.size());
+            return results;
+        }
+
+        boolean broken = false;
+        try {
+            SSHClient client = acquireConnection();
+            SshHost host = currentHost;
+            host.operationStarted();
+            long operationStart = System.nanoTime();
+            boolean operationSuccess = false;
+            try {
+                startSession(client, scriptLanguage);
+                ShellSession shell = ShellSession.start(session, dialect, configuration, getConnectionDesc());
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    results = shell.executeBatch(processedCommands);
+                    success = true;
+                } finally {
+                    recordPhase(scriptLanguage, SshMetrics.Phase.EXEC, start, success);
+                    shell.close();
+                }
+                operationSuccess = true;
+            } finally {
+                host.operationFinished(System.nanoTime() - operationStart, operationSuccess);
+            }
+        } catch (ConnectorIOException e) {
+            broken = true;
+            OperationLog.error("{0} Script batch ERR {1}", getConnectionDesc(), OperationLog.abbreviate(e.getMessage(), configuration.getDiagnosticLogMaxLength()));
+            throw e;
+        } catch (RuntimeException e) {
+            OperationLog.error("{0} Script batch ERR {1}", getConnectionDesc(), OperationLog.abbreviate(e.getMessage(), configuration.getDiagnosticLogMaxLength()));
+            throw e;
+        } finally {
+            closeSession();
+            releaseConnection(broken);
+        }
+
+        recordBatchBytes(scriptLanguage, processedCommands, results);
+        OperationLog.log("{0} Script batch RES: {1} results", getConnectionDesc(), results.size());
+        return results;
+    }
+
+    /**
+     * Executes each non-blank line of the script as a separate script of a batch (see OPTION_BATCH).
+     * Results are structured in the same way as for "structured" result mode, without durations.
+     */
+    private List<Map<String, Object>> runBatch(ScriptContext scriptCtx, OperationOptions options) {
+        if (scriptCtx.getScriptText() == null) {
+            throw new ConnectorException("No script text in batch script");
+        }
+        List<ScriptContext> scriptCtxs = new ArrayList<>();
+        for (String line : scriptCtx.getScriptText().split("\\r?\\n")) {
+            if (!line.trim().isEmpty()) {
+                scriptCtxs.add(new ScriptContext(scriptCtx.getScriptLanguage(), line, scriptCtx.getScriptArguments()));
+            }
+        }
+        List<Map<String, Object>> results = new ArrayList<>(scriptCtxs.size());
+        for (CommandResult commandResult : runScriptsOnResource(scriptCtxs, options)) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put(CommandResult.KEY_SUCCESS, !isFailed(commandResult.getError(), commandResult.getExitStatus()));
+            result.put(CommandResult.KEY_EXIT_STATUS, commandResult.getExitStatus());
+            result.put(CommandResult.KEY_STDOUT, commandResult.getOutput());
+            result.put(CommandResult.KEY_STDERR, commandResult.getError());
+            result.put(CommandResult.KEY_STDOUT_BYTES, commandResult.getOutputBytes());
+            result.put(CommandResult.KEY_STDERR_BYTES, commandResult.getErrorBytes());
+            result.put(CommandResult.KEY_TRUNCATED, commandResult.isTruncated());
+            results.add(result);
+        }
+        return results;
+    }
+
+    private void recordBatchBytes(String scriptLanguage, List<String> processedCommands, List<CommandResult> results) {
+        long received = 0;
+        for (CommandResult result : results) {
+            received += result.getOutputBytes() + result.getErrorBytes();
+        }
+        recordBytes(scriptLanguage, String.join("\n", processedCommands), received);
+    }
+
+    /**
+     * Runs the action in the remote shell kept by this connector instance, starting the shell if needed.
+     * Broken shell is closed, it will be started again for the next command.
+     */
+    private <T> T runInShell(ShellSession.Dialect dialect, String language, Function<ShellSession, T> action) {
+        ShellSession shell = getShell(dialect, language);
+        SshHost host = currentHost;
+        host.operationStarted();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = action.apply(shell);
+            success = true;
+            return result;
+        } catch (ConnectorIOException e) {
+            closeShell(true);
+            throw e;
+        } catch (OperationTimeoutException e) {
+            // The shell was killed, but the connection is fine
+            closeShell(false);
+            throw e;
+        } finally {
+            recordPhase(language, SshMetrics.Phase.EXEC, start, success);
+            host.operationFinished(System.nanoTime() - start, success);
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private ShellSession getShell(ShellSession.Dialect dialect, String language) {
+        if (shellSession != null && (shellSession.getDialect() != dialect || !shellSession.isOpen())) {
+            LOG.ok("Remote shell on {0} is closed or it has a different dialect, starting new one", getConnectionDesc());
+            closeShell(false);
+        }
+        if (shellSession == null) {
+            boolean started = false;
+            try {
+                SSHClient client = acquireConnection();
+                long start = System.nanoTime();
+                try {
+                    startSession(client);
+                    shellSession = ShellSession.start(session, dialect, configuration, getConnectionDesc());
+                    started = true;
+                } finally {
+                    recordPhase(language, SshMetrics.Phase.SESSION, start, started);
+                }
+                LOG.ok("Remote {0} shell on {1} started", dialect, getConnectionDesc());
+            } finally {
+                if (!started) {
+                    closeShell(true);
+                }
+            }
+        }
+        return shellSession;
+    }
+
+    /**
+     * Closes the remote shell and its session. The connection is released according to the connection mode.
+     */
+    private void closeShell(boolean broken) {
+        if (shellSession != null) {
+            shellSession.close();
+            shellSession = null;
+        }
+        closeSession();
+        releaseConnection(broken);
+    }
+
+    // Exec can be run only once in each session. We need to start a new session each time.
+    // In "exec" connection mode we also explicitly connect and disconnect each time.
+    // In "persistent" connection mode the connection stays open for the next command.
+    // In "shared" connection mode the connection is borrowed from (and returned to) the shared connection manager.
+    private Execution exec(String processedCommand, String scriptLanguage) {
 
-        connect();
+        boolean broken = false;
+        try {
+            SSHClient client = acquireConnection();
+            SshHost host = currentHost;
+            host.operationStarted();
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                startSession(client, scriptLanguage);
+                Execution execution = execInSession(processedCommand, scriptLanguage);
+                success = true;
+                return execution;
+            } finally {
+                host.operationFinished(System.nanoTime() - start, success);
+            }
+        } catch (ConnectorIOException e) {
+            broken = true;
+            throw e;
+        } finally {
+            closeSession();
+            releaseConnection(broken);
+        }
+    }
 
+    private Execution execInSession(String processedCommand, String scriptLanguage) {
         final Session.Command cmd;
+        long execStart = System.nanoTime();
         try {
             cmd = session.exec(processedCommand);
         } catch (ConnectionException | TransportException e) {
+            recordPhase(scriptLanguage, SshMetrics.Phase.EXEC, execStart, false);
             throw new ConnectorIOException("Network error while executing SSH command: "+e.getMessage(), e);
         }
-        String output;
-        String error;
-        String errorMsg;
+        recordPhase(scriptLanguage, SshMetrics.Phase.EXEC, execStart, true);
+        OutputCollector output = new OutputCollector(configuration.getMaxOutputSize(),
+                SshConfiguration.OUTPUT_OVERFLOW_SPOOL.equals(configuration.getOutputOverflow()));
+        OutputCollector errorCollector = null;
+        Execution execution;
+        boolean success = false;
+        long readStart = System.nanoTime();
         try {
-            LOG.info("---- executing ssh command -----------");
-            LOG.info("processedCommand: {0} ", processedCommand);
-            output = IOUtils.readFully(cmd.getInputStream()).toString();
-            LOG.info("SSH command ouput: {0}", output);
-            error = IOUtils.readFully(cmd.getErrorStream()).toString();
-            LOG.info("SSH command error: {0}", error);
-            LOG.info("command error: {0}", error);
-            LOG.info("command exitErrorMsg: {0}", cmd.getExitErrorMessage());
-            LOG.info("command exitStatus: {0}", cmd.getExitStatus());
-            LOG.info("command exitSignal: {0}", cmd.getExitSignal());
-            LOG.info("--------------------------------------");
-
-            //throwing Exception based on exitStatus (e.g. !Integer.valueOf(0).equals(cmd.getExitStatus()) ) was not feasible
-            // - calling powershell successfully returned exitCode null
-            // - there may be return codes <> 0 having empty errorstream. E.g. calling grep (linux) having empty result
-            // simple solution: throw Exception if there is something in error stream
-            if (!error.isEmpty()){
-                LOG.error("---- error executing ssh command ----");
-                LOG.error("-- processedCommand: {0} ", processedCommand);
-                LOG.error("-- command ouput: {0}", output);
-                LOG.error("-- command error: {0}", error);
-                LOG.error("-- command exitErrorMsg: {0}", cmd.getExitErrorMessage());
-                LOG.error("-- command exitStatus: {0}", cmd.getExitStatus());
-                LOG.error("-- command exitSignal: {0}", cmd.getExitSignal());
-                LOG.error("--------------------------------------");
-                throw new ConnectorException("Error executing SSH command: "+ error);
+            // Both streams are read at the same time. The command may fill up the channel window
+            // with error output before it finishes the standard output. Reading the streams one after another
+            // would block both the command and us in such case.
+            // Error output is always truncated, it is used only in error messages.
+            // Standard output is read in this thread, only error output needs another thread.
+            errorCollector = new OutputCollector(configuration.getMaxErrorOutputSize(), false);
+            Session execSession = session;
+            CommandMonitor monitor = new CommandMonitor(configuration, getConnectionDesc(), cmd::signal,
+                    () -> closeSession(execSession), output, errorCollector);
+            Future<Void> errorPump = errorCollector.pumpAsync(cmd.getErrorStream());
+            monitor.run(() -> {
+                output.pump(cmd.getInputStream());
+                return null;
+            });
+            monitor.await(errorPump);
+            output.close();
+            try {
+                cmd.join(5, TimeUnit.SECONDS);
+            } catch (ConnectionException e) {
+                throw new ConnectorIOException("Error \"joining\" SSH command: "+e.getMessage(), e);
+            }
+            execution = new Execution(output, errorCollector.toString(), errorCollector.getTotalBytes(), cmd.getExitStatus(),
+                    cmd.getExitSignal() == null ? null : cmd.getExitSignal().name(), cmd.getExitErrorMessage());
+            int maxLength = configuration.getDiagnosticLogMaxLength();
+            if (LOG.isOk()) {
+                LOG.ok("SSH command on {0} finished: exit status {1}, exit signal {2}, exit error message {3}\ncommand: {4}\noutput: {5}\nerror: {6}",
+                        getConnectionDesc(), cmd.getExitStatus(), cmd.getExitSignal(), cmd.getExitErrorMessage(),
+                        OperationLog.abbreviate(processedCommand, maxLength), output.toString(maxLength), errorCollector.toString(maxLength));
             }
+            success = true;
         } catch (IOException e) {
             throw new ConnectorIOException("Error reading output of SSH command: "+e.getMessage(), e);
+        } finally {
+            recordPhase(scriptLanguage, SshMetrics.Phase.READ, readStart, success);
+            recordBytes(scriptLanguage, processedCommand,
+                    output.getTotalBytes() + (errorCollector == null ? 0 : errorCollector.getTotalBytes()));
+            if (!success) {
+                output.discard();
+            }
         }
 
-        try {
-            cmd.join(5, TimeUnit.SECONDS);
-        } catch (ConnectionException e) {
-            throw new ConnectorIOException("Error \"joining\" SSH command: "+e.getMessage(), e);
-        }
+        return execution;
+    }
 
-        LOG.info("SSH command exit status: {0}", cmd.getExitStatus());
+    /**
+     * Outcome of a command executed in its own session. Whether it failed is decided by the error detection policy.
+     */
+    private static final class Execution {
 
-        disconnect();
+        private final OutputCollector output;
+        private final String error;
+        private final long errorBytes;
+        private final Integer exitStatus;
+        private final String exitSignal;
+        private final String exitErrorMessage;
 
-        return output;
+        private Execution(OutputCollector output, String error, long errorBytes, Integer exitStatus, String exitSignal,
+                String exitErrorMessage) {
+            this.output = output;
+            this.error = error;
+            this.errorBytes = errorBytes;
+            this.exitStatus = exitStatus;
+            this.exitSignal = exitSignal;
+            this.exitErrorMessage = exitErrorMessage;
+        }
     }
 }
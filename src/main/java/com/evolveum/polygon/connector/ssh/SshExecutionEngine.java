@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking parts of SSH operations in background: readers and writers of command streams,
+ * connections established ahead of demand, fan-out scripts and asynchronous scripts.
+ *
+ * The tasks run in virtual threads when the JVM supports them well (Java 24 and later). A task that waits for the network
+ * then does not occupy a platform thread, so many operations can be in progress at the same time.
+ * Virtual threads are not used on Java 21 to 23: sshj reads channel streams in synchronized blocks (wait() in
+ * ChannelInputStream.read), which pins the virtual thread to its carrier thread there. Each blocked read would occupy
+ * a carrier thread and a few slow commands could stall all the other virtual threads of the JVM.
+ * Java 24 does not pin virtual threads in synchronized blocks (JEP 491).
+ *
+ * On older JVMs the tasks run in daemon platform threads, idle threads are stopped after a while.
+ * There are two kinds of tasks:
+ * <ul>
+ *     <li>Stream tasks (readers and writers of command streams, connections established ahead of demand) do not wait
+ *     for other tasks. They run in at most MAX_PLATFORM_THREADS threads. When all the threads are busy,
+ *     the submitting thread waits for a free one. It does not fail, the stream tasks always end
+ *     (at the latest when their command ends or times out).</li>
+ *     <li>Operation tasks (fan-out and asynchronous scripts) wait for their stream tasks, therefore they run
+ *     in threads of their own. Their number is limited by the configuration of each connector instance
+ *     (maxAsyncOperations, fanOutParallelism), operations over the limit wait in a queue before they are submitted.</li>
+ * </ul>
+ *
+ * @author semancik
+ */
+public class SshExecutionEngine {
+
+    private static final Log LOG = Log.getLog(SshExecutionEngine.class);
+
+    private static final String THREAD_NAME_PREFIX = "connector-ssh-worker-";
+    private static final String OPERATION_THREAD_NAME_PREFIX = "connector-ssh-operation-";
+
+    /**
+     * Maximum number of platform threads for stream tasks (used when virtual threads are not available).
+     * A command needs one of them (reader of error output), standard output is read by the thread that runs the command.
+     */
+    public static final int MAX_PLATFORM_THREADS = 256;
+
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * First Java version that does not pin virtual threads that wait in synchronized blocks.
+     */
+    private static final int MIN_VIRTUAL_THREADS_JAVA_VERSION = 24;
+
+    private static final ExecutorService EXECUTOR;
+    private static final ExecutorService OPERATION_EXECUTOR;
+    private static final boolean VIRTUAL_THREADS;
+
+    /**
+     * Single thread that watches timeouts of running commands. The checks are short, they never wait for the network.
+     */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connector-ssh-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ExecutorService virtualExecutor = createVirtualThreadExecutor();
+        VIRTUAL_THREADS = virtualExecutor != null;
+        if (VIRTUAL_THREADS) {
+            EXECUTOR = virtualExecutor;
+            OPERATION_EXECUTOR = virtualExecutor;
+        } else {
+            // No queue: the task is handed over to a thread directly. If all the threads are busy, the submitter waits.
+            EXECUTOR = new ThreadPoolExecutor(0, MAX_PLATFORM_THREADS, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), new DaemonThreadFactory(THREAD_NAME_PREFIX), SshExecutionEngine::waitForThread);
+            OPERATION_EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), new DaemonThreadFactory(OPERATION_THREAD_NAME_PREFIX));
+        }
+    }
+
+    /**
+     * Whether the tasks run in virtual threads.
+     */
+    public static boolean isVirtualThreads() {
+        return VIRTUAL_THREADS;
+    }
+
+    /**
+     * Starts the stream task. If there are already too many tasks running, waits for a free thread.
+     * The task must not wait for other tasks of the engine.
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        try {
+            return EXECUTOR.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new ConnectorException("Cannot start SSH operation: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts the operation task (fan-out or asynchronous script). Number of operation tasks must be limited by the caller.
+     */
+    public static <T> Future<T> submitOperation(Callable<T> task) {
+        try {
+            return OPERATION_EXECUTOR.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new ConnectorException("Cannot start SSH operation: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts the operation task (fan-out or asynchronous script). Number of operation tasks must be limited by the caller.
+     */
+    public static void executeOperation(Runnable task) {
+        OPERATION_EXECUTOR.execute(task);
+    }
+
+    /**
+     * Runs the check after the delay (in milliseconds) in the watchdog thread.
+     */
+    static ScheduledFuture<?> schedule(Runnable check, long delay) {
+        return WATCHDOG.schedule(check, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when all the stream threads are busy: waits until one of them takes the task.
+     */
+    private static void waitForThread(Runnable task, ThreadPoolExecutor executor) {
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for a free thread", e);
+        }
+    }
+
+    /**
+     * Executor with new virtual thread for each task, or null if virtual threads are not available
+     * or they would be pinned by blocking reads of sshj.
+     * Looked up reflectively, the connector is built for Java 8.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        if (getJavaVersion() < MIN_VIRTUAL_THREADS_JAVA_VERSION) {
+            return null;
+        }
+        try {
+            // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(THREAD_NAME_PREFIX, 1).factory())
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+            LOG.info("SSH operations run in virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Older Java, or virtual threads are not enabled
+            return null;
+        }
+    }
+
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version", "");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
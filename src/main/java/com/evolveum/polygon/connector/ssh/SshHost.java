@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Target host (host name and port) and its statistics, shared by all connector instances in the JVM.
+ *
+ * The statistics are used to choose the host for an operation (see HostSelectionStrategy):
+ * number of operations in progress, average duration of recent operations and time of the last connection failure.
+ *
+ * @author semancik
+ */
+public class SshHost {
+
+    private static final Map<String, SshHost> HOSTS = new ConcurrentHashMap<>();
+
+    /**
+     * Weight of the last operation in the average duration. The average follows the changes of the host load quickly,
+     * while a single slow operation does not change it too much.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final String name;
+    private final int port;
+    private final String key;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder operationCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private final LongAdder connectFailureCount = new LongAdder();
+
+    // Following fields are guarded by "this"
+    private double averageNanos = 0;
+    private long lastConnectFailure = 0;
+
+    private SshHost(String name, int port) {
+        this.name = name;
+        this.port = port;
+        this.key = name + ":" + port;
+    }
+
+    /**
+     * Returns the host, creating it if needed.
+     */
+    public static SshHost forHost(String name, int port) {
+        return HOSTS.computeIfAbsent(name + ":" + port, k -> new SshHost(name, port));
+    }
+
+    /**
+     * Parses list of hosts separated by commas or whitespace. Each host may specify its port (host:port,
+     * IPv6 address must be in brackets in that case), otherwise the default port is used.
+     */
+    public static List<SshHost> parse(String hosts, int defaultPort) {
+        List<SshHost> parsed = new ArrayList<>();
+        if (hosts == null) {
+            return parsed;
+        }
+        for (String entry : hosts.split("[,\\s]+")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            String name = entry;
+            int port = defaultPort;
+            int colon = entry.lastIndexOf(':');
+            if (entry.startsWith("[")) {
+                int bracket = entry.indexOf(']');
+                if (bracket < 0) {
+                    throw new ConfigurationException("Invalid host " + entry + ": missing ]");
+                }
+                name = entry.substring(1, bracket);
+                if (bracket + 1 < entry.length()) {
+                    if (entry.charAt(bracket + 1) != ':') {
+                        throw new ConfigurationException("Invalid host " + entry);
+                    }
+                    port = parsePort(entry, entry.substring(bracket + 2));
+                }
+            } else if (colon >= 0 && entry.indexOf(':') == colon) {
+                // Just one colon: host:port. More colons: IPv6 address without port.
+                name = entry.substring(0, colon);
+                port = parsePort(entry, entry.substring(colon + 1));
+            }
+            SshHost host = forHost(name, port);
+            if (!parsed.contains(host)) {
+                parsed.add(host);
+            }
+        }
+        return parsed;
+    }
+
+    private static int parsePort(String entry, String port) {
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("Invalid port in host " + entry + ": " + port);
+        }
+    }
+
+    /**
+     * Returns all the hosts by key, e.g. for monitoring.
+     */
+    public static Map<String, SshHost> getHosts() {
+        return Collections.unmodifiableMap(new TreeMap<>(HOSTS));
+    }
+
+    /**
+     * Forgets all the hosts and their statistics. Mostly useful for tests.
+     */
+    public static void resetAll() {
+        HOSTS.clear();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Host name and port, used as a key of per-host state and statistics.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Host name for messages. Port is included only if it is not the default SSH port.
+     */
+    public String getDesc() {
+        return port == 22 ? name : key;
+    }
+
+    /**
+     * Number of operations that are using the host right now (in all connector instances).
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Moving average of the duration of operations on this host (in milliseconds). Zero if there was no operation yet.
+     */
+    public synchronized double getAverageMillis() {
+        return averageNanos / 1e6;
+    }
+
+    public long getOperationCount() {
+        return operationCount.sum();
+    }
+
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    public long getConnectFailureCount() {
+        return connectFailureCount.sum();
+    }
+
+    /**
+     * Whether the host is expected to be reachable: the last connection attempt was successful
+     * (or it failed more than retryDelay milliseconds ago) and its circuit breaker (if any) is not open.
+     */
+    public boolean isHealthy(long retryDelay) {
+        synchronized (this) {
+            if (lastConnectFailure != 0 && System.currentTimeMillis() - lastConnectFailure < retryDelay) {
+                return false;
+            }
+        }
+        SshCircuitBreaker breaker = SshCircuitBreaker.getBreaker(key);
+        return breaker == null || breaker.getState() != SshCircuitBreaker.State.OPEN;
+    }
+
+    public void operationStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void operationFinished(long durationNanos, boolean success) {
+        inFlight.decrementAndGet();
+        operationCount.increment();
+        if (!success) {
+            failureCount.increment();
+        }
+        synchronized (this) {
+            averageNanos = averageNanos == 0 ? durationNanos : averageNanos + LATENCY_WEIGHT * (durationNanos - averageNanos);
+        }
+    }
+
+    public synchronized void connectSucceeded() {
+        lastConnectFailure = 0;
+    }
+
+    public void connectFailed() {
+        connectFailureCount.increment();
+        synchronized (this) {
+            lastConnectFailure = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SshHost(" + key + ": inFlight=" + getInFlight() + ", average=" + String.format("%.1f", getAverageMillis())
+                + "ms, operations=" + getOperationCount() + ", failures=" + getFailureCount()
+                + ", connectFailures=" + getConnectFailureCount() + ")";
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measurements of SSH operations, shared by all connector instances in the JVM.
+ *
+ * Each operation is divided into phases (see Phase). Duration of each phase is recorded in a histogram
+ * for the target host, script language and phase, together with the number of bytes transferred.
+ * The statistics are available using JMX (see SshMetricsMXBean) and the individual measurements
+ * are passed to registered listeners.
+ *
+ * @author semancik
+ */
+public class SshMetrics implements SshMetricsMXBean {
+
+    private static final Log LOG = Log.getLog(SshMetrics.class);
+
+    public static final String OBJECT_NAME = "com.evolveum.polygon.connector.ssh:type=SshMetrics";
+
+    /**
+     * Bucket i holds durations shorter than 2^i microseconds (and not shorter than 2^(i-1) microseconds).
+     * The last bucket takes everything longer (more than a week).
+     */
+    private static final int BUCKETS = 40;
+
+    private static final SshMetrics INSTANCE = new SshMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Another copy of the connector (e.g. other version or other class loader) was first
+            LOG.ok("SSH connector metrics already registered in JMX, statistics of this connector copy are not available in JMX");
+        } catch (Exception | LinkageError e) {
+            LOG.warn("Cannot register SSH connector metrics in JMX: {0} (ignoring)", e.getMessage());
+        }
+    }
+
+    public enum Phase {
+        /**
+         * Establishing TCP connection, including name resolution.
+         */
+        CONNECT,
+        /**
+         * SSH protocol version exchange, key exchange and host key verification.
+         */
+        KEX,
+        /**
+         * User authentication.
+         */
+        AUTH,
+        /**
+         * Opening SSH session (channel). In shell execution mode this includes start of the remote shell.
+         */
+        SESSION,
+        /**
+         * Starting the command. In shell execution mode, this is the whole command including reading of its output.
+         */
+        EXEC,
+        /**
+         * Reading command output until the command finishes.
+         */
+        READ
+    }
+
+    private final Map<Key, Statistics> statistics = new ConcurrentHashMap<>();
+    private final List<SshMetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, SshMetricsListener> listenersByClassName = new ConcurrentHashMap<>();
+
+    public static SshMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public void addListener(SshMetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SshMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers listener of given class, unless a listener of the same class is already registered.
+     */
+    public void addListener(String className) {
+        listenersByClassName.computeIfAbsent(className, name -> {
+            SshMetricsListener listener;
+            try {
+                // Not initialized until it is known to be a listener
+                Class<? extends SshMetricsListener> listenerClass = Class.forName(name, false, SshMetrics.class.getClassLoader())
+                        .asSubclass(SshMetricsListener.class);
+                listener = listenerClass.getConstructor().newInstance();
+            } catch (ClassCastException e) {
+                throw new ConfigurationException("Class " + name + " is not a metrics listener");
+            } catch (ReflectiveOperationException e) {
+                throw new ConfigurationException("Cannot create metrics listener " + name + ": " + e.getMessage(), e);
+            }
+            addListener(listener);
+            return listener;
+        });
+    }
+
+    public void record(String host, String language, Phase phase, long durationNanos, boolean success) {
+        getStatistics(host, language, phase).record(durationNanos, success);
+        for (SshMetricsListener listener : listeners) {
+            try {
+                listener.phaseCompleted(host, language, phase, durationNanos, success);
+            } catch (RuntimeException e) {
+                LOG.warn("Metrics listener {0} failed: {1} (ignoring)", listener, e.getMessage());
+            }
+        }
+    }
+
+    public void recordBytes(String host, String language, long bytesSent, long bytesReceived) {
+        Statistics phaseStatistics = getStatistics(host, language, Phase.EXEC);
+        phaseStatistics.bytesSent.add(bytesSent);
+        phaseStatistics.bytesReceived.add(bytesReceived);
+        for (SshMetricsListener listener : listeners) {
+            try {
+                listener.bytesTransferred(host, language, bytesSent, bytesReceived);
+            } catch (RuntimeException e) {
+                LOG.warn("Metrics listener {0} failed: {1} (ignoring)", listener, e.getMessage());
+            }
+        }
+    }
+
+    private Statistics getStatistics(String host, String language, Phase phase) {
+        return statistics.computeIfAbsent(new Key(host, language == null ? "" : language, phase), k -> new Statistics());
+    }
+
+    @Override
+    public List<PhaseStatistics> getPhaseStatistics() {
+        List<PhaseStatistics> snapshot = new ArrayList<>(statistics.size());
+        for (Map.Entry<Key, Statistics> entry : statistics.entrySet()) {
+            snapshot.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        snapshot.sort(Comparator.comparing(PhaseStatistics::getHost)
+                .thenComparing(PhaseStatistics::getLanguage)
+                .thenComparing(s -> Phase.valueOf(s.getPhase())));
+        return snapshot;
+    }
+
+    /**
+     * Returns statistics of one phase, or null if the phase was never recorded.
+     */
+    public PhaseStatistics getPhaseStatistics(String host, String language, Phase phase) {
+        Key key = new Key(host, language == null ? "" : language, phase);
+        Statistics phaseStatistics = statistics.get(key);
+        return phaseStatistics == null ? null : phaseStatistics.snapshot(key);
+    }
+
+    @Override
+    public Map<String, String> getCircuitBreakers() {
+        Map<String, String> states = new LinkedHashMap<>();
+        for (Map.Entry<String, SshCircuitBreaker> entry : SshCircuitBreaker.getBreakers().entrySet()) {
+            states.put(entry.getKey(), entry.getValue().toString());
+        }
+        return states;
+    }
+
+    @Override
+    public Map<String, String> getHosts() {
+        Map<String, String> hosts = new LinkedHashMap<>();
+        for (Map.Entry<String, SshHost> entry : SshHost.getHosts().entrySet()) {
+            hosts.put(entry.getKey(), entry.getValue().toString());
+        }
+        return hosts;
+    }
+
+    @Override
+    public Map<String, String> getConcurrencyLimiters() {
+        Map<String, String> limiters = new LinkedHashMap<>();
+        for (Map.Entry<String, SshConcurrencyLimiter> entry : SshConcurrencyLimiter.getLimiters().entrySet()) {
+            limiters.put(entry.getKey(), entry.getValue().toString());
+        }
+        return limiters;
+    }
+
+    @Override
+    public Map<String, String> getCompression() {
+        Map<String, String> compression = new LinkedHashMap<>();
+        for (Map.Entry<String, SshCompression.Statistics> entry : SshCompression.getStatistics().entrySet()) {
+            compression.put(entry.getKey(), entry.getValue().toString());
+        }
+        return compression;
+    }
+
+    @Override
+    public void reset() {
+        statistics.clear();
+    }
+
+    private static final class Key {
+
+        private final String host;
+        private final String language;
+        private final Phase phase;
+
+        private Key(String host, String language, Phase phase) {
+            this.host = host;
+            this.language = language;
+            this.phase = phase;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return phase == other.phase && host.equals(other.host) && language.equals(other.language);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, language, phase);
+        }
+    }
+
+    /**
+     * Lock-free histogram and counters of one phase.
+     */
+    private static final class Statistics {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+
+        private void record(long durationNanos, boolean success) {
+            long micros = Math.max(0, durationNanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            if (!success) {
+                failures.increment();
+            }
+            totalNanos.add(durationNanos);
+            maxNanos.accumulateAndGet(durationNanos, Math::max);
+        }
+
+        private PhaseStatistics snapshot(Key key) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            double maxMillis = maxNanos.get() / 1e6;
+            return new PhaseStatistics(key.host, key.language, key.phase.name(), count.sum(), failures.sum(),
+                    totalNanos.sum() / 1e6, maxMillis,
+                    percentile(counts, total, 50, maxMillis), percentile(counts, total, 90, maxMillis),
+                    percentile(counts, total, 99, maxMillis), bytesSent.sum(), bytesReceived.sum());
+        }
+
+        private static double percentile(long[] counts, long total, double percentile, double maxMillis) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    // Upper bound of the bucket, but never more than the maximum
+                    return Math.min((1L << i) / 1e3, maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+    }
+}
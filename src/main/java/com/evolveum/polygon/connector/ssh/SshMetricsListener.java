@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+/**
+ * Receives measurements of SSH operations, e.g. to forward them to external monitoring system.
+ * Listeners are registered in SshMetrics, either programmatically or by metricsListener configuration property.
+ * In the latter case the class must have public no-argument constructor.
+ *
+ * Listeners are called synchronously from the threads that execute the operations, from many threads at once.
+ * They must be thread-safe and fast.
+ *
+ * @author semancik
+ */
+public interface SshMetricsListener {
+
+    /**
+     * One phase of an operation has finished.
+     *
+     * @param host target host and port
+     * @param language script language, null for phases that are not related to a particular script (connect, auth)
+     * @param durationNanos duration of the phase in nanoseconds
+     * @param success false if the phase failed
+     */
+    void phaseCompleted(String host, String language, SshMetrics.Phase phase, long durationNanos, boolean success);
+
+    /**
+     * Script was sent to the host and its output was received.
+     *
+     * @param bytesSent size of the script (command) text
+     * @param bytesReceived size of the output (both standard and error output)
+     */
+    default void bytesTransferred(String host, String language, long bytesSent, long bytesReceived) {
+    }
+}
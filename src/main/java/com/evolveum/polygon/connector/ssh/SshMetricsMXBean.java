@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface of SSH connector metrics, registered as {@value SshMetrics#OBJECT_NAME}.
+ *
+ * @author semancik
+ */
+public interface SshMetricsMXBean {
+
+    /**
+     * Statistics of operation phases by host, script language and phase.
+     */
+    List<PhaseStatistics> getPhaseStatistics();
+
+    /**
+     * State of circuit breakers by host.
+     */
+    Map<String, String> getCircuitBreakers();
+
+    /**
+     * Load and health of target hosts by host.
+     */
+    Map<String, String> getHosts();
+
+    /**
+     * State of adaptive concurrency limiters by host.
+     */
+    Map<String, String> getConcurrencyLimiters();
+
+    /**
+     * Bytes before and after compression of compressed connections by host.
+     */
+    Map<String, String> getCompression();
+
+    /**
+     * Forgets all the collected statistics.
+     */
+    void reset();
+}
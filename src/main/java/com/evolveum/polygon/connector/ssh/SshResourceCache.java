@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import com.evolveum.polygon.common.GuardedStringAccessor;
+import net.schmizz.sshj.Config;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.common.Factory;
+import net.schmizz.sshj.userauth.keyprovider.FileKeyProvider;
+import net.schmizz.sshj.userauth.keyprovider.KeyFormat;
+import net.schmizz.sshj.userauth.keyprovider.KeyPairWrapper;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
+import net.schmizz.sshj.userauth.keyprovider.KeyProviderUtil;
+import net.schmizz.sshj.userauth.password.PasswordUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache of objects derived from connector configuration that are expensive to create:
+ * parsed known hosts verifiers and decoded (decrypted) private keys.
+ * All the connector instances with the same configuration share the same objects.
+ *
+ * The objects are cached under a fingerprint (HMAC-SHA256) of the configuration properties they are derived from.
+ * Changed configuration means a new fingerprint, the objects for old configuration are evicted
+ * when they are not used for a while (least recently used objects are evicted when the cache is full).
+ * Cached objects are immutable or thread-safe.
+ *
+ * @author semancik
+ */
+public class SshResourceCache {
+
+    private static final Log LOG = Log.getLog(SshResourceCache.class);
+
+    private static final int MAX_ENTRIES = 100;
+
+    private static final SshResourceCache INSTANCE = new SshResourceCache();
+
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Key of the fingerprints, generated once for each process. The fingerprints contain secrets (passwords, passphrases),
+     * without a secret key anyone who sees a fingerprint (e.g. in debug output) could test password guesses offline.
+     */
+    private static final SecretKeySpec FINGERPRINT_KEY = createFingerprintKey();
+
+    /**
+     * SSH client configuration (algorithm factories), shared by all the SSH clients.
+     */
+    private final Config sshConfig = new DefaultConfig();
+
+    /**
+     * Entries in access order, guarded by "this".
+     */
+    private final Map<String, Entry<?>> entries = new LinkedHashMap<String, Entry<?>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SshResourceCache.Entry<?>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public static SshResourceCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns SSH client configuration. It must not be modified.
+     */
+    public Config getSshConfig() {
+        return sshConfig;
+    }
+
+    public ConnectorKnownHostsVerifier getHostKeyVerifier(String[] knownHosts) {
+        return get("knownHosts#" + fingerprint((Object) knownHosts), () -> new ConnectorKnownHostsVerifier().parse(knownHosts));
+    }
+
+    /**
+     * Returns decoded private key. The key is decrypted (using the passphrase) only once.
+     */
+    public KeyProvider getKeyProvider(GuardedString privateKey, GuardedString passphrase) {
+        return get("privateKey#" + fingerprint(privateKey, passphrase), () -> loadKey(privateKey, passphrase));
+    }
+
+    private KeyProvider loadKey(GuardedString privateKey, GuardedString passphrase) {
+        GuardedStringAccessor privateKeyAccessor = new GuardedStringAccessor();
+        GuardedStringAccessor passphraseAccessor = new GuardedStringAccessor();
+        privateKey.access(privateKeyAccessor);
+        if (passphrase != null) {
+            passphrase.access(passphraseAccessor);
+        }
+        try {
+            KeyFormat format = KeyProviderUtil.detectKeyFileFormat(privateKeyAccessor.getClearString(), false);
+            FileKeyProvider fileKeyProvider = Factory.Named.Util.create(sshConfig.getFileKeyProviderFactories(), format.toString());
+            if (fileKeyProvider == null) {
+                throw new ConfigurationException("Unsupported format of private key for SSH public key authentication: " + format);
+            }
+            if (passphraseAccessor.getClearChars() != null) {
+                fileKeyProvider.init(privateKeyAccessor.getClearString(), null, PasswordUtils.createOneOff(passphraseAccessor.getClearChars()));
+            } else {
+                fileKeyProvider.init(privateKeyAccessor.getClearString(), null, null);
+            }
+            // The key is decoded lazily, force it now. The result does not need the passphrase any more.
+            LOG.ok("Decoding {0} private key", format);
+            return new KeyPairWrapper(fileKeyProvider.getPublic(), fileKeyProvider.getPrivate());
+        } catch (IOException e) {
+            throw new ConfigurationException("Error parsing private key for SSH public key authentication", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(String key, Supplier<T> loader) {
+        Entry<T> entry;
+        synchronized (this) {
+            entry = (Entry<T>) entries.computeIfAbsent(key, k -> new Entry<>());
+        }
+        try {
+            return entry.get(loader);
+        } catch (RuntimeException e) {
+            // Do not cache errors, the next attempt may succeed (e.g. with fixed configuration)
+            synchronized (this) {
+                entries.remove(key, entry);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes all the cached objects. Mostly useful for tests.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns fingerprint (Base64-encoded HMAC-SHA256 with random per-process key) of configuration values.
+     * Supported values are strings, string arrays, guarded strings and anything else that has reasonable toString().
+     * The fingerprint does not reveal the secrets and it cannot be used to guess them outside this process,
+     * it is safe to keep it in memory. Fingerprints are the same only within the process.
+     */
+    public static String fingerprint(Object... values) {
+        Mac digest;
+        try {
+            digest = Mac.getInstance(FINGERPRINT_ALGORITHM);
+            digest.init(FINGERPRINT_KEY);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("No " + FINGERPRINT_ALGORITHM + ": " + e.getMessage(), e);
+        }
+        for (Object value : values) {
+            updateDigest(digest, value);
+        }
+        return Base64.getEncoder().encodeToString(digest.doFinal());
+    }
+
+    private static SecretKeySpec createFingerprintKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, FINGERPRINT_ALGORITHM);
+    }
+
+    private static void updateDigest(Mac digest, Object value) {
+        if (value instanceof GuardedString) {
+            ((GuardedString) value).access(chars -> {
+                for (char c : chars) {
+                    digest.update((byte) (c >> 8));
+                    digest.update((byte) c);
+                }
+            });
+        } else if (value instanceof Object[]) {
+            for (Object item : (Object[]) value) {
+                updateDigest(digest, item);
+            }
+        } else if (value != null) {
+            digest.update(value.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Lazily created object. The object is created only once, even if several threads ask for it at the same time.
+     */
+    private static class Entry<T> {
+
+        private T value;
+
+        private synchronized T get(Supplier<T> loader) {
+            if (value == null) {
+                value = loader.get();
+            }
+            return value;
+        }
+    }
+}
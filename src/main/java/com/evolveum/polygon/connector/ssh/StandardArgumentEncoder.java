@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+/**
+ * Argument styles supported by the connector out of the box.
+ *
+ * @author semancik
+ */
+public enum StandardArgumentEncoder implements ArgumentEncoder {
+
+    /**
+     * command -f foo -b bar
+     */
+    DASH(SshConfiguration.ARGUMENT_STYLE_DASH) {
+        @Override
+        public void appendName(StringBuilder sb, String name, boolean quoteValues) {
+            appendOption(sb, " -", name, " ", quoteValues);
+        }
+    },
+
+    /**
+     * command --fu=foo --bar=baz
+     */
+    DASHDASH(SshConfiguration.ARGUMENT_STYLE_DASHDASH) {
+        @Override
+        public void appendName(StringBuilder sb, String name, boolean quoteValues) {
+            appendOption(sb, " --", name, "=", quoteValues);
+        }
+    },
+
+    /**
+     * command /f foo /b bar
+     */
+    SLASH(SshConfiguration.ARGUMENT_STYLE_SLASH) {
+        @Override
+        public void appendName(StringBuilder sb, String name, boolean quoteValues) {
+            appendOption(sb, " /", name, " ", quoteValues);
+        }
+    },
+
+    /**
+     * fu='foo'; bar='baz'; command $foo $bar
+     */
+    VARIABLES_BASH(SshConfiguration.ARGUMENT_STYLE_VARIABLES_BASH) {
+        @Override
+        public boolean isArgumentsFirst() {
+            return true;
+        }
+
+        @Override
+        public void appendName(StringBuilder sb, String name, boolean quoteValues) {
+            ShellQuoter.checkName(name, true);
+            sb.append(name).append('=');
+        }
+
+        @Override
+        public void appendValue(StringBuilder sb, Object value, ShellQuoter quoter) {
+            ShellQuoter.POSIX.quote(sb, value.toString());
+            sb.append("; ");
+        }
+    },
+
+    /**
+     * $fu='foo'; $bar='baz'; command $foo $bar
+     */
+    VARIABLES_POWERSHELL(SshConfiguration.ARGUMENT_STYLE_VARIABLES_POWERSHELL) {
+        @Override
+        public boolean isArgumentsFirst() {
+            return true;
+        }
+
+        @Override
+        public void appendName(StringBuilder sb, String name, boolean quoteValues) {
+            ShellQuoter.checkName(name, true);
+            sb.append('$').append(name).append(" = ");
+        }
+
+        @Override
+        public void appendValue(StringBuilder sb, Object value, ShellQuoter quoter) {
+            ShellQuoter.POWERSHELL.quote(sb, value.toString());
+            sb.append("; ");
+        }
+    };
+
+    private final String style;
+
+    StandardArgumentEncoder(String style) {
+        this.style = style;
+    }
+
+    @Override
+    public String getStyle() {
+        return style;
+    }
+
+    /**
+     * Options go after the command.
+     */
+    @Override
+    public boolean isArgumentsFirst() {
+        return false;
+    }
+
+    /**
+     * Option value, quoted if requested.
+     */
+    @Override
+    public void appendValue(StringBuilder sb, Object value, ShellQuoter quoter) {
+        if (quoter != null) {
+            quoter.quote(sb, value.toString());
+        } else {
+            sb.append(value);
+        }
+    }
+
+    public static StandardArgumentEncoder forStyle(String style) {
+        for (StandardArgumentEncoder encoder : values()) {
+            if (encoder.style.equals(style)) {
+                return encoder;
+            }
+        }
+        return null;
+    }
+
+    private static void appendOption(StringBuilder sb, String prefix, String name, String separator, boolean quoteValues) {
+        if (quoteValues) {
+            // Unquoted values may contain anything anyway, names are checked only when the values are safe.
+            ShellQuoter.checkName(name, false);
+        }
+        sb.append(prefix).append(name).append(separator);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Host selection strategies supported by the connector out of the box.
+ *
+ * @author semancik
+ */
+public enum StandardHostSelectionStrategy implements HostSelectionStrategy {
+
+    /**
+     * Hosts in the configured order: the first host is used while it is available, the others are backups.
+     */
+    ORDERED(SshConfiguration.HOST_SELECTION_ORDERED) {
+        @Override
+        public List<SshHost> order(List<SshHost> hosts) {
+            return hosts;
+        }
+    },
+
+    /**
+     * Each connection goes to the next host in the list.
+     */
+    ROUND_ROBIN(SshConfiguration.HOST_SELECTION_ROUND_ROBIN) {
+        @Override
+        public List<SshHost> order(List<SshHost> hosts) {
+            int first = Math.floorMod(next.getAndIncrement(), hosts.size());
+            List<SshHost> ordered = new ArrayList<>(hosts.size());
+            ordered.addAll(hosts.subList(first, hosts.size()));
+            ordered.addAll(hosts.subList(0, first));
+            return ordered;
+        }
+    },
+
+    /**
+     * Host with the least operations in progress (in all connector instances) first.
+     */
+    LEAST_IN_FLIGHT(SshConfiguration.HOST_SELECTION_LEAST_IN_FLIGHT) {
+        @Override
+        public List<SshHost> order(List<SshHost> hosts) {
+            return sorted(hosts, SshHost::getInFlight);
+        }
+    },
+
+    /**
+     * Host with the shortest average duration of recent operations first.
+     * Hosts without any operation yet go first, so all the hosts get measured.
+     */
+    LOWEST_LATENCY(SshConfiguration.HOST_SELECTION_LOWEST_LATENCY) {
+        @Override
+        public List<SshHost> order(List<SshHost> hosts) {
+            return sorted(hosts, SshHost::getAverageMillis);
+        }
+    };
+
+    /**
+     * Strategies selected by class name, one instance for each class.
+     */
+    private static final Map<String, HostSelectionStrategy> CLASS_STRATEGIES = new ConcurrentHashMap<>();
+
+    private final String name;
+
+    // Used by round robin only
+    final AtomicInteger next = new AtomicInteger();
+
+    StandardHostSelectionStrategy(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns standard strategy of the name, or an instance of strategy class of the name.
+     */
+    public static HostSelectionStrategy forName(String name) {
+        if (name == null) {
+            return ROUND_ROBIN;
+        }
+        for (StandardHostSelectionStrategy strategy : values()) {
+            if (strategy.name.equals(name)) {
+                return strategy;
+            }
+        }
+        return CLASS_STRATEGIES.computeIfAbsent(name, StandardHostSelectionStrategy::createStrategy);
+    }
+
+    private static HostSelectionStrategy createStrategy(String className) {
+        Class<? extends HostSelectionStrategy> strategyClass;
+        try {
+            // Not initialized until it is known to be a strategy
+            strategyClass = Class.forName(className, false, StandardHostSelectionStrategy.class.getClassLoader())
+                    .asSubclass(HostSelectionStrategy.class);
+        } catch (ClassNotFoundException e) {
+            throw new ConfigurationException("Unknown value of host selection strategy: " + className);
+        } catch (ClassCastException e) {
+            throw new ConfigurationException("Class " + className + " is not a host selection strategy");
+        }
+        try {
+            return strategyClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new ConfigurationException("Cannot create host selection strategy " + className + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sorts the hosts by the statistic, lowest value first. Hosts with the same value stay in the configured order.
+     */
+    private static List<SshHost> sorted(List<SshHost> hosts, ToDoubleFunction<SshHost> statistic) {
+        // The statistics change all the time, they are read just once, before sorting.
+        // Sorting by live values would give inconsistent comparisons (and TimSort may fail on them).
+        int size = hosts.size();
+        double[] values = new double[size];
+        List<Integer> indexes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values[i] = statistic.applyAsDouble(hosts.get(i));
+            indexes.add(i);
+        }
+        indexes.sort(Comparator.comparingDouble(i -> values[i]));
+        List<SshHost> ordered = new ArrayList<>(size);
+        for (int index : indexes) {
+            ordered.add(hosts.get(index));
+        }
+        return ordered;
+    }
+}
@@ -19,20 +19,64 @@ import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.APIConfiguration;
 import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.api.ConnectorFacadeFactory;
-import org.identityconnectors.framework.common.objects.ScriptContext;
 import org.identityconnectors.test.common.TestHelpers;
-import org.testng.AssertJUnit;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.function.Consumer;
 
+/**
+ * Common tests for all SSH servers.
+ *
+ * By default the tests run against embedded SSH server, started for each test class.
+ * Tests for real servers override the connection parameters and isEmbeddedServer().
+ */
 public abstract class AbstractSshTest {
 
+    private EmbeddedSshServer server;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        if (isEmbeddedServer()) {
+            server = new EmbeddedSshServer();
+            customizeServer(server);
+            server.start();
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() throws IOException {
+        SshConnectionManager.getInstance().closeAll();
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /**
+     * Whether to start embedded SSH server for the tests.
+     */
+    protected boolean isEmbeddedServer() {
+        return true;
+    }
+
+    /**
+     * Hook to set up the embedded server before it is started.
+     */
+    protected void customizeServer(EmbeddedSshServer server) {
+    }
+
+    protected EmbeddedSshServer getServer() {
+        return server;
+    }
+
     private SshConfiguration createConfiguration() {
         SshConfiguration config = new SshConfiguration();
 
         config.setHost(getHostname());
+        config.setPort(getPort());
         config.setUsername(getUsername());
         config.setPassword(new GuardedString(getPassword().toCharArray()));
         addToConnectorConfiguration(config);
@@ -40,11 +84,21 @@ public abstract class AbstractSshTest {
         return config;
     }
 
-    protected abstract String getHostname();
+    protected String getHostname() {
+        return server.getHostname();
+    }
 
-    protected abstract String getUsername();
+    protected int getPort() {
+        return server == null ? 22 : server.getPort();
+    }
 
-    protected abstract String getPassword();
+    protected String getUsername() {
+        return EmbeddedSshServer.USERNAME;
+    }
+
+    protected String getPassword() {
+        return EmbeddedSshServer.PASSWORD;
+    }
 
     protected abstract String getLaguage();
 
@@ -62,6 +116,27 @@ public abstract class AbstractSshTest {
         return createConnectorFacade(createConfiguration());
     }
 
+    /**
+     * Sets up connector with configuration modified for a particular test.
+     */
+    protected ConnectorFacade setupConnector(Consumer<SshConfiguration> customizer) {
+        SshConfiguration config = createConfiguration();
+        customizer.accept(config);
+        return createConnectorFacade(config);
+    }
+
+    /**
+     * Sets up connector instance directly, without the connector facade (and its pool).
+     * The caller is responsible for disposing the connector.
+     */
+    protected SshConnector setupConnectorInstance(Consumer<SshConfiguration> customizer) {
+        SshConfiguration config = createConfiguration();
+        customizer.accept(config);
+        SshConnector connector = new SshConnector();
+        connector.init(config);
+        return connector;
+    }
+
     @Test
     public void testTest() throws Exception {
         ConnectorFacade connector = setupConnector();
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class CommandProcessorTest {
+
+    @Test
+    public void testDash() {
+        AssertJUnit.assertEquals("cmd -foo bar -empty  positional",
+                process(SshConfiguration.ARGUMENT_STYLE_DASH, SshConfiguration.HANDLE_NULL_AS_EMPTY_STRING));
+        AssertJUnit.assertEquals("cmd -foo bar positional",
+                process(SshConfiguration.ARGUMENT_STYLE_DASH, SshConfiguration.HANDLE_NULL_AS_GONE));
+    }
+
+    @Test
+    public void testSlash() {
+        AssertJUnit.assertEquals("cmd /foo bar positional",
+                process(SshConfiguration.ARGUMENT_STYLE_SLASH, SshConfiguration.HANDLE_NULL_AS_GONE));
+    }
+
+    @Test
+    public void testDashDash() {
+        AssertJUnit.assertEquals("cmd --foo=bar --empty= positional",
+                process(SshConfiguration.ARGUMENT_STYLE_DASHDASH, SshConfiguration.HANDLE_NULL_AS_EMPTY_STRING));
+        AssertJUnit.assertEquals("cmd --foo=bar positional",
+                process(SshConfiguration.ARGUMENT_STYLE_DASHDASH, SshConfiguration.HANDLE_NULL_AS_GONE));
+    }
+
+    @Test
+    public void testVariables() {
+        AssertJUnit.assertEquals("foo='bar'; empty=''; cmd positional",
+                process(SshConfiguration.ARGUMENT_STYLE_VARIABLES_BASH, SshConfiguration.HANDLE_NULL_AS_EMPTY_STRING));
+        AssertJUnit.assertEquals("$foo = 'bar'; cmd positional",
+                process(SshConfiguration.ARGUMENT_STYLE_VARIABLES_POWERSHELL, SshConfiguration.HANDLE_NULL_AS_GONE));
+    }
+
+    @Test
+    public void testVariablesQuoting() {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle(SshConfiguration.ARGUMENT_STYLE_VARIABLES_BASH);
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        arguments.put("foo", "it's $(id)");
+        AssertJUnit.assertEquals("foo='it'\\''s $(id)'; cmd",
+                new CommandProcessor(configuration).process(new ScriptContext("bash", "cmd", arguments)));
+
+        configuration.setArgumentStyle(SshConfiguration.ARGUMENT_STYLE_VARIABLES_POWERSHELL);
+        AssertJUnit.assertEquals("$foo = 'it''s $(id)'; cmd",
+                new CommandProcessor(configuration).process(new ScriptContext("powershell", "cmd", arguments)));
+    }
+
+    @Test
+    public void testQuoteOptionValues() {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle(SshConfiguration.ARGUMENT_STYLE_DASH);
+        configuration.setQuoteOptionValues(true);
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        arguments.put("foo", "a b;c");
+        CommandProcessor processor = new CommandProcessor(configuration);
+        AssertJUnit.assertEquals("cmd -foo 'a b;c'", processor.process(new ScriptContext("sh", "cmd", arguments)));
+        AssertJUnit.assertEquals("cmd -foo ^\"a b;c^\"", processor.process(new ScriptContext("cmd", "cmd", arguments)));
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testInvalidVariableName() {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle(SshConfiguration.ARGUMENT_STYLE_VARIABLES_BASH);
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        arguments.put("x=1; rm -rf /; y", "value");
+        new CommandProcessor(configuration).process(new ScriptContext("bash", "cmd", arguments));
+    }
+
+    @Test
+    public void testServiceEncoder() {
+        AssertJUnit.assertEquals("cmd foo:bar positional", process("colon", SshConfiguration.HANDLE_NULL_AS_GONE));
+    }
+
+    @Test
+    public void testEncoderClass() {
+        String className = ColonArgumentEncoder.class.getName();
+        AssertJUnit.assertEquals("cmd foo:bar positional", process(className, SshConfiguration.HANDLE_NULL_AS_GONE));
+        AssertJUnit.assertSame(CommandProcessor.getEncoder(className), CommandProcessor.getEncoder(className));
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testNotEncoderClass() {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle(String.class.getName());
+        new CommandProcessor(configuration);
+    }
+
+    /**
+     * Class of wrong type is rejected before its constructor runs.
+     */
+    @Test
+    public void testNotEncoderClassNotCreated() {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle(NotEncoder.class.getName());
+        try {
+            new CommandProcessor(configuration);
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+        AssertJUnit.assertEquals(0, NotEncoder.created);
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testUnknownStyle() {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle("tilde");
+        new CommandProcessor(configuration);
+    }
+
+    private String process(String argumentStyle, String handleNullValues) {
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setArgumentStyle(argumentStyle);
+        configuration.setHandleNullValues(handleNullValues);
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        arguments.put("foo", "bar");
+        arguments.put("empty", null);
+        arguments.put(null, "positional");
+        return new CommandProcessor(configuration).process(new ScriptContext("bash", "cmd", arguments));
+    }
+
+    public static class NotEncoder {
+
+        private static int created = 0;
+
+        public NotEncoder() {
+            created++;
+        }
+    }
+
+    /**
+     * Registered in META-INF/services as "colon" style: command name:value
+     */
+    public static class ColonArgumentEncoder implements ArgumentEncoder {
+
+        @Override
+        public String getStyle() {
+            return "colon";
+        }
+
+        @Override
+        public boolean isArgumentsFirst() {
+            return false;
+        }
+
+        @Override
+        public void appendName(StringBuilder sb, String name, boolean quoteValues) {
+            sb.append(' ').append(name).append(':');
+        }
+
+        @Override
+        public void appendValue(StringBuilder sb, Object value, ShellQuoter quoter) {
+            sb.append(value);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import net.schmizz.sshj.common.Buffer;
+import net.schmizz.sshj.common.KeyType;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Base64;
+
+public class ConnectorKnownHostsVerifierTest {
+
+    private PublicKey key1;
+    private PublicKey key2;
+    private PublicKey key3;
+
+    @BeforeClass
+    public void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        key1 = generator.generateKeyPair().getPublic();
+        key2 = generator.generateKeyPair().getPublic();
+        key3 = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void testEmpty() {
+        ConnectorKnownHostsVerifier verifier = new ConnectorKnownHostsVerifier().parse(new String[0]);
+
+        AssertJUnit.assertTrue(verifier.verify("anything.example.com", 22, key1));
+    }
+
+    @Test
+    public void testPlainHosts() {
+        ConnectorKnownHostsVerifier verifier = new ConnectorKnownHostsVerifier().parse(new String[] {
+                "one.example.com,10.0.0.1 " + encode(key1),
+                "two.example.com " + encode(key2)
+        });
+
+        AssertJUnit.assertTrue(verifier.verify("one.example.com", 22, key1));
+        AssertJUnit.assertTrue(verifier.verify("10.0.0.1", 22, key1));
+        AssertJUnit.assertTrue(verifier.verify("two.example.com", 22, key2));
+        AssertJUnit.assertFalse(verifier.verify("one.example.com", 22, key2));
+        AssertJUnit.assertFalse(verifier.verify("two.example.com", 22, key1));
+        AssertJUnit.assertFalse(verifier.verify("three.example.com", 22, key1));
+        // Cached verdicts must be the same
+        AssertJUnit.assertTrue(verifier.verify("one.example.com", 22, key1));
+        AssertJUnit.assertFalse(verifier.verify("one.example.com", 22, key2));
+    }
+
+    @Test
+    public void testHashedHosts() throws Exception {
+        ConnectorKnownHostsVerifier verifier = new ConnectorKnownHostsVerifier().parse(new String[] {
+                hash("one.example.com") + " " + encode(key1),
+                hash("two.example.com") + " " + encode(key1),
+                hash("three.example.com") + " " + encode(key2)
+        });
+
+        AssertJUnit.assertTrue(verifier.verify("one.example.com", 22, key1));
+        AssertJUnit.assertTrue(verifier.verify("two.example.com", 22, key1));
+        AssertJUnit.assertTrue(verifier.verify("three.example.com", 22, key2));
+        AssertJUnit.assertFalse(verifier.verify("three.example.com", 22, key1));
+        AssertJUnit.assertFalse(verifier.verify("four.example.com", 22, key1));
+        AssertJUnit.assertFalse(verifier.verify("one.example.com", 22, key3));
+    }
+
+    @Test
+    public void testPatterns() {
+        ConnectorKnownHostsVerifier verifier = new ConnectorKnownHostsVerifier().parse(new String[] {
+                "*.example.com " + encode(key1),
+                "host?.example.org " + encode(key2)
+        });
+
+        AssertJUnit.assertTrue(verifier.verify("one.example.com", 22, key1));
+        AssertJUnit.assertTrue(verifier.verify("host1.example.org", 22, key2));
+        AssertJUnit.assertFalse(verifier.verify("one.example.com", 22, key2));
+    }
+
+    @Test
+    public void testRevoked() {
+        ConnectorKnownHostsVerifier verifier = new ConnectorKnownHostsVerifier().parse(new String[] {
+                "@revoked one.example.com " + encode(key1)
+        });
+
+        AssertJUnit.assertFalse(verifier.verify("one.example.com", 22, key1));
+    }
+
+    private String encode(PublicKey key) {
+        return KeyType.fromKey(key) + " " + Base64.getEncoder().encodeToString(new Buffer.PlainBuffer().putPublicKey(key).getCompactData());
+    }
+
+    private String hash(String host) throws Exception {
+        byte[] salt = new byte[20];
+        for (int i = 0; i < salt.length; i++) {
+            salt[i] = (byte) (host.hashCode() + i);
+        }
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(salt, "HmacSHA1"));
+        byte[] hash = mac.doFinal(host.getBytes(StandardCharsets.UTF_8));
+        return "|1|" + Base64.getEncoder().encodeToString(salt) + "|" + Base64.getEncoder().encodeToString(hash);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.core.CoreModuleProperties;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.AbstractCommandSupport;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process SSH server (Apache MINA SSHD) for tests and benchmarks. No external host is needed.
+ *
+ * Exec requests for the emulated commands are handled inside the server, without starting any process:
+ *
+ * - fixture-echo TEXT: prints the text followed by new line.
+ * - fixture-output BYTES: prints given number of bytes (lines of 'x' characters).
+ * - fixture-sleep MILLIS: prints nothing and finishes after given time.
+ * - fixture-stderr LINES: prints given number of lines to error output, then "done" to standard output.
+ *
+ * All other exec requests are executed by /bin/sh -c, shell requests start /bin/sh.
+ * Therefore the server needs a UNIX-like system for anything else than emulated commands.
+ *
+ * @author semancik
+ */
+public class EmbeddedSshServer {
+
+    public static final String USERNAME = "tester";
+    public static final String PASSWORD = "secret";
+
+    public static final String COMMAND_ECHO = "fixture-echo";
+    public static final String COMMAND_OUTPUT = "fixture-output";
+    public static final String COMMAND_SLEEP = "fixture-sleep";
+    public static final String COMMAND_STDERR = "fixture-stderr";
+
+    private static final int LINE_LENGTH = 64;
+
+    private final Map<String, EmulatedCommand> commands = new ConcurrentHashMap<>();
+    private final AtomicInteger execCount = new AtomicInteger();
+    private final AtomicInteger shellCount = new AtomicInteger();
+    private final AtomicInteger authCount = new AtomicInteger();
+
+    private SshServer server;
+    private Integer maxChannels;
+    private PublicKey authorizedKey;
+
+    public EmbeddedSshServer() {
+        addCommand(COMMAND_ECHO, (argument, out, err) -> {
+            write(out, argument + "\n");
+            return 0;
+        });
+        addCommand(COMMAND_OUTPUT, (argument, out, err) -> {
+            writeLines(out, Long.parseLong(argument));
+            return 0;
+        });
+        addCommand(COMMAND_SLEEP, (argument, out, err) -> {
+            Thread.sleep(Long.parseLong(argument));
+            return 0;
+        });
+        addCommand(COMMAND_STDERR, (argument, out, err) -> {
+            int lines = Integer.parseInt(argument);
+            for (int i = 0; i < lines; i++) {
+                write(err, "noise " + i + "\n");
+            }
+            write(out, "done\n");
+            return 0;
+        });
+    }
+
+    /**
+     * Registers additional emulated command. Must be called before the server is started.
+     */
+    public void addCommand(String name, EmulatedCommand command) {
+        commands.put(name, command);
+    }
+
+    /**
+     * Limits the number of channels that can be open on one connection (similar to sshd MaxSessions).
+     * Must be called before the server is started.
+     */
+    public void setMaxChannels(int maxChannels) {
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * Allows public key authentication of the test user with the key.
+     * Must be called before the server is started.
+     */
+    public void setAuthorizedKey(PublicKey authorizedKey) {
+        this.authorizedKey = authorizedKey;
+    }
+
+    public void start() throws IOException {
+        server = SshServer.setUpDefaultServer();
+        server.setHost("localhost");
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        server.setPasswordAuthenticator((username, password, session) -> {
+            authCount.incrementAndGet();
+            return USERNAME.equals(username) && PASSWORD.equals(password);
+        });
+        if (authorizedKey != null) {
+            server.setPublickeyAuthenticator((username, key, session) -> {
+                authCount.incrementAndGet();
+                return USERNAME.equals(username) && KeyUtils.compareKeys(authorizedKey, key);
+            });
+        }
+        server.setCommandFactory(this::createCommand);
+        ProcessShellFactory shellFactory = new ProcessShellFactory("/bin/sh", "/bin/sh");
+        server.setShellFactory(channel -> {
+            shellCount.incrementAndGet();
+            return shellFactory.createShell(channel);
+        });
+        // Same as OpenSSH, otherwise small packets are delayed
+        CoreModuleProperties.TCP_NODELAY.set(server, true);
+        if (maxChannels != null) {
+            CoreModuleProperties.MAX_CONCURRENT_CHANNELS.set(server, maxChannels);
+        }
+        server.start();
+    }
+
+    public void stop() throws IOException {
+        if (server != null) {
+            server.stop(true);
+            server = null;
+        }
+    }
+
+    public String getHostname() {
+        return "localhost";
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Number of commands executed by exec requests since the server was started.
+     */
+    public int getExecCount() {
+        return execCount.get();
+    }
+
+    /**
+     * Number of shells started since the server was started.
+     */
+    public int getShellCount() {
+        return shellCount.get();
+    }
+
+    /**
+     * Number of password authentication attempts since the server was started.
+     * This is also a good estimate of the number of SSH connections.
+     */
+    public int getAuthCount() {
+        return authCount.get();
+    }
+
+    /**
+     * Number of SSH connections that are open right now.
+     */
+    public int getActiveConnectionCount() {
+        return server.getActiveSessions().size();
+    }
+
+    private Command createCommand(ChannelSession channel, String command) throws IOException {
+        execCount.incrementAndGet();
+        String trimmed = command.trim();
+        int space = trimmed.indexOf(' ');
+        String name = space < 0 ? trimmed : trimmed.substring(0, space);
+        String argument = space < 0 ? "" : trimmed.substring(space + 1);
+        EmulatedCommand emulatedCommand = commands.get(name);
+        if (emulatedCommand != null) {
+            return new EmulatedCommandRunner(command, emulatedCommand, argument);
+        }
+        return new ProcessShellFactory(command, "/bin/sh", "-c", command).createShell(channel);
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void writeLines(OutputStream out, long bytes) throws IOException {
+        byte[] line = new byte[LINE_LENGTH];
+        for (int i = 0; i < LINE_LENGTH - 1; i++) {
+            line[i] = 'x';
+        }
+        line[LINE_LENGTH - 1] = '\n';
+        long remaining = bytes;
+        while (remaining > 0) {
+            int length = (int) Math.min(remaining, LINE_LENGTH);
+            out.write(line, LINE_LENGTH - length, length);
+            remaining -= length;
+        }
+        out.flush();
+    }
+
+    /**
+     * Command that is executed inside the server, without starting a process.
+     */
+    @FunctionalInterface
+    public interface EmulatedCommand {
+        /**
+         * Returns exit status of the command.
+         */
+        int execute(String argument, OutputStream out, OutputStream err) throws IOException, InterruptedException;
+    }
+
+    private static class EmulatedCommandRunner extends AbstractCommandSupport {
+
+        private final EmulatedCommand command;
+        private final String argument;
+
+        private EmulatedCommandRunner(String commandLine, EmulatedCommand command, String argument) {
+            super(commandLine, null);
+            this.command = command;
+            this.argument = argument;
+        }
+
+        @Override
+        public void run() {
+            int exitStatus;
+            try {
+                exitStatus = command.execute(argument, getOutputStream(), getErrorStream());
+            } catch (InterruptedException e) {
+                // The channel was closed, e.g. the client killed the command
+                onExit(130, "Interrupted");
+                return;
+            } catch (IOException | RuntimeException e) {
+                onExit(1, e.getMessage());
+                return;
+            }
+            onExit(exitStatus);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class FanOutExecutorTest {
+
+    @Test(timeOut = 10000)
+    public void testRejectedHostCollectAll() {
+        Map<String, Map<String, Object>> results = FanOutExecutor.execute(tasks(), 1, false, rejecting(1));
+
+        AssertJUnit.assertEquals("[a, b, c]", results.keySet().toString());
+        AssertJUnit.assertEquals(true, results.get("a").get(CommandResult.KEY_SUCCESS));
+        AssertJUnit.assertEquals(false, results.get("b").get(CommandResult.KEY_SUCCESS));
+        String error = (String) results.get("b").get(CommandResult.KEY_ERROR);
+        AssertJUnit.assertTrue("Unexpected error: " + error, error.contains("Script not started"));
+        // The permit of the rejected host was released, otherwise the last host would wait forever
+        AssertJUnit.assertEquals(true, results.get("c").get(CommandResult.KEY_SUCCESS));
+    }
+
+    @Test(timeOut = 10000)
+    public void testRejectedHostFailFast() {
+        try {
+            FanOutExecutor.execute(tasks(), 1, true, rejecting(1));
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConnectorException e) {
+            AssertJUnit.assertTrue("Unexpected message: " + e.getMessage(), e.getMessage().contains("failed on b (Script not started"));
+            AssertJUnit.assertTrue("Unexpected message: " + e.getMessage(), e.getMessage().contains("succeeded on 1 hosts, not started on 1 hosts: c"));
+        }
+    }
+
+    private Map<String, Supplier<Map<String, Object>>> tasks() {
+        Map<String, Supplier<Map<String, Object>>> tasks = new LinkedHashMap<>();
+        for (String host : new String[] { "a", "b", "c" }) {
+            tasks.put(host, () -> {
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put(CommandResult.KEY_SUCCESS, true);
+                return result;
+            });
+        }
+        return tasks;
+    }
+
+    private Function<Callable<Map<String, Object>>, Future<Map<String, Object>>> rejecting(int rejected) {
+        int[] submitted = { 0 };
+        return task -> {
+            if (submitted[0]++ == rejected) {
+                throw new ConnectorException("Cannot start SSH operation: rejected");
+            }
+            return SshExecutionEngine.submitOperation(task);
+        };
+    }
+}
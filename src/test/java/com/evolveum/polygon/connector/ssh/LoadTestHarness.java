@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Runs an operation in several threads at once and measures throughput and latency.
+ *
+ * Each thread gets its own worker (e.g. its own connector instance), executes several warm-up operations
+ * and then the measured operations. All the threads start the measured operations at the same time.
+ *
+ * @author semancik
+ */
+public class LoadTestHarness {
+
+    private final int threads;
+    private final int warmupOperations;
+    private final int operations;
+
+    /**
+     * @param threads number of concurrent threads
+     * @param warmupOperations number of operations each thread executes before the measurement
+     * @param operations number of measured operations executed by each thread
+     */
+    public LoadTestHarness(int threads, int warmupOperations, int operations) {
+        this.threads = threads;
+        this.warmupOperations = warmupOperations;
+        this.operations = operations;
+    }
+
+    public Result run(Supplier<Worker> workerFactory) throws InterruptedException {
+        long[][] latencies = new long[threads][operations];
+        int[] completed = new int[threads];
+        AtomicInteger errors = new AtomicInteger();
+        AtomicReference<Throwable> firstError = new AtomicReference<>();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int threadIndex = t;
+            Thread thread = new Thread(() -> {
+                try (Worker worker = workerFactory.get()) {
+                    for (int i = 0; i < warmupOperations; i++) {
+                        execute(worker, errors, firstError);
+                    }
+                    ready.countDown();
+                    start.await();
+                    for (int i = 0; i < operations; i++) {
+                        long startNanos = System.nanoTime();
+                        if (execute(worker, errors, firstError)) {
+                            latencies[threadIndex][completed[threadIndex]++] = System.nanoTime() - startNanos;
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    firstError.compareAndSet(null, e);
+                } finally {
+                    // Does not matter if it was already counted down, but the main thread must not wait for failed thread
+                    ready.countDown();
+                }
+            }, "load-test-" + t);
+            workerThreads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : workerThreads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        int total = 0;
+        for (int count : completed) {
+            total += count;
+        }
+        long[] allLatencies = new long[total];
+        int position = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, allLatencies, position, completed[t]);
+            position += completed[t];
+        }
+        Arrays.sort(allLatencies);
+        return new Result(threads, allLatencies, errors.get(), firstError.get(), elapsedNanos);
+    }
+
+    private boolean execute(Worker worker, AtomicInteger errors, AtomicReference<Throwable> firstError) {
+        try {
+            worker.execute();
+            return true;
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            firstError.compareAndSet(null, e);
+            return false;
+        }
+    }
+
+    /**
+     * Executes the operation. Each worker is used by a single thread only.
+     */
+    public interface Worker extends AutoCloseable {
+
+        void execute() throws Exception;
+
+        /**
+         * Releases resources of the worker. It does not throw checked exceptions, failed close is not a load test error.
+         */
+        @Override
+        default void close() {
+        }
+    }
+
+    public static class Result {
+
+        private final int threads;
+        private final long[] sortedLatencies;
+        private final int errors;
+        private final Throwable firstError;
+        private final long elapsedNanos;
+
+        private Result(int threads, long[] sortedLatencies, int errors, Throwable firstError, long elapsedNanos) {
+            this.threads = threads;
+            this.sortedLatencies = sortedLatencies;
+            this.errors = errors;
+            this.firstError = firstError;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Number of successfully completed measured operations.
+         */
+        public int getOperations() {
+            return sortedLatencies.length;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public Throwable getFirstError() {
+            return firstError;
+        }
+
+        /**
+         * Successful operations per second, all threads together.
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : sortedLatencies.length * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Latency percentile in milliseconds, e.g. getPercentile(99) for 99th percentile.
+         */
+        public double getPercentile(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d threads, %d ops, %d errors, %.1f ops/s, latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                    threads, getOperations(), errors, getThroughput(),
+                    getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(100));
+        }
+    }
+}
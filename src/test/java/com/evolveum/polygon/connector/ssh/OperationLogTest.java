@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class OperationLogTest {
+
+    @Test
+    public void testAbbreviate() {
+        AssertJUnit.assertEquals("short", OperationLog.abbreviate("short", 10));
+        AssertJUnit.assertEquals("0123... (10 chars)", OperationLog.abbreviate("0123456789", 4));
+        AssertJUnit.assertEquals("(10 chars)", OperationLog.abbreviate("0123456789", 0));
+        AssertJUnit.assertNull(OperationLog.abbreviate(null, 10));
+    }
+
+    @Test
+    public void testOutputPrefix() throws Exception {
+        OutputCollector output = new OutputCollector(0, false);
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        output.write(data);
+        output.close();
+
+        AssertJUnit.assertEquals("abcde... (100000 bytes)", output.toString(5));
+        AssertJUnit.assertEquals("(100000 bytes)", output.toString(0));
+        AssertJUnit.assertEquals(new String(data, StandardCharsets.US_ASCII), output.toString(data.length));
+    }
+}
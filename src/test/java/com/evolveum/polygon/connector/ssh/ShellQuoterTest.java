@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.AssertJUnit;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Quoting of random values with plenty of special characters. POSIX quoting is checked by real shells,
+ * PowerShell and cmd.exe quoting by reference parsers written according to the documented parsing rules.
+ */
+public class ShellQuoterTest {
+
+    private static final String HOSTILE = "'\"`$\\!%^&|;<>()[]{}*?~#=,:@ \t\n\r-/.\u2018\u2019\u201A\u201B\u201C\u201D\u00E9\u4E2D";
+
+    private static final int VALUES = 500;
+
+    @Test
+    public void testPosixQuoting() {
+        AssertJUnit.assertEquals("'plain'", ShellQuoter.POSIX.quote("plain"));
+        AssertJUnit.assertEquals("''", ShellQuoter.POSIX.quote(""));
+        AssertJUnit.assertEquals("'it'\\''s'", ShellQuoter.POSIX.quote("it's"));
+    }
+
+    @Test
+    public void testPosixShells() throws Exception {
+        List<String> values = randomValues(new Random(42), true);
+        for (String shell : new String[] { "/bin/sh", "/bin/bash" }) {
+            if (!new File(shell).canExecute()) {
+                throw new SkipException("No " + shell + " here");
+            }
+            StringBuilder script = new StringBuilder("printf '%s\\0'");
+            for (String value : values) {
+                script.append(' ');
+                ShellQuoter.POSIX.quote(script, value);
+            }
+            String[] output = runShell(shell, script.toString()).split("\0", -1);
+            AssertJUnit.assertEquals(shell, values.size() + 1, output.length);
+            for (int i = 0; i < values.size(); i++) {
+                AssertJUnit.assertEquals(shell, values.get(i), output[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testPowerShell() {
+        AssertJUnit.assertEquals("'it''s'", ShellQuoter.POWERSHELL.quote("it's"));
+        AssertJUnit.assertEquals("'it\u2019\u2019s'", ShellQuoter.POWERSHELL.quote("it\u2019s"));
+        for (String value : randomValues(new Random(43), true)) {
+            AssertJUnit.assertEquals(value, parsePowerShellVerbatim(ShellQuoter.POWERSHELL.quote(value)));
+        }
+    }
+
+    @Test
+    public void testCmd() {
+        AssertJUnit.assertEquals("^\"a b^\"", ShellQuoter.CMD.quote("a b"));
+        AssertJUnit.assertEquals("^\"^%PATH^%^\"", ShellQuoter.CMD.quote("%PATH%"));
+        AssertJUnit.assertEquals("^\"a\\\\\\^\"b\\\\^\"", ShellQuoter.CMD.quote("a\\\"b\\"));
+        for (String value : randomValues(new Random(44), false)) {
+            AssertJUnit.assertEquals(Arrays.asList(value), parseCmdArguments(ShellQuoter.CMD.quote(value)));
+        }
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testCmdLineBreak() {
+        ShellQuoter.CMD.quote("one\ntwo");
+    }
+
+    @Test
+    public void testCheckName() {
+        ShellQuoter.checkName("foo_Bar9", true);
+        ShellQuoter.checkName("dry-run", false);
+        for (String name : new String[] { "", "9lives", "a b", "a;b", "$x", "a=b", "-x" }) {
+            try {
+                ShellQuoter.checkName(name, false);
+                AssertJUnit.fail("Name '" + name + "' accepted");
+            } catch (ConnectorException e) {
+                // expected
+            }
+        }
+        try {
+            ShellQuoter.checkName("dry-run", true);
+            AssertJUnit.fail("Variable name with dash accepted");
+        } catch (ConnectorException e) {
+            // expected
+        }
+    }
+
+    private List<String> randomValues(Random random, boolean lineBreaks) {
+        List<String> values = new ArrayList<>(VALUES);
+        for (int i = 0; i < VALUES; i++) {
+            int length = random.nextInt(20);
+            StringBuilder sb = new StringBuilder(length);
+            while (sb.length() < length) {
+                char c = random.nextInt(3) == 0 ? (char) ('a' + random.nextInt(26)) : HOSTILE.charAt(random.nextInt(HOSTILE.length()));
+                if (lineBreaks || c != '\n' && c != '\r') {
+                    sb.append(c);
+                }
+            }
+            values.add(sb.toString());
+        }
+        return values;
+    }
+
+    private String runShell(String shell, String script) throws Exception {
+        // Script goes through standard input, so the bytes do not depend on platform encoding of command arguments
+        Process process = new ProcessBuilder(shell).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(script.getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream out = process.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = out.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+        }
+        AssertJUnit.assertEquals(shell + " exit status", 0, process.waitFor());
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Verbatim (single-quoted) string: any single quote character ends the string, unless it is followed by another one.
+     */
+    private String parsePowerShellVerbatim(String quoted) {
+        AssertJUnit.assertTrue(quoted, isPowerShellQuote(quoted.charAt(0)));
+        StringBuilder value = new StringBuilder();
+        int i = 1;
+        while (true) {
+            AssertJUnit.assertTrue("Unterminated " + quoted, i < quoted.length());
+            char c = quoted.charAt(i);
+            if (isPowerShellQuote(c)) {
+                if (i + 1 < quoted.length() && isPowerShellQuote(quoted.charAt(i + 1))) {
+                    value.append(c);
+                    i += 2;
+                    continue;
+                }
+                AssertJUnit.assertEquals("Text after the end of " + quoted, quoted.length(), i + 1);
+                return value.toString();
+            }
+            value.append(c);
+            i++;
+        }
+    }
+
+    private boolean isPowerShellQuote(char c) {
+        return c == '\'' || c == '\u2018' || c == '\u2019' || c == '\u201A' || c == '\u201B';
+    }
+
+    /**
+     * First cmd.exe removes carets (an unescaped special character would be interpreted by cmd.exe),
+     * then the program splits its command line by the Microsoft C runtime rules.
+     */
+    private List<String> parseCmdArguments(String commandLine) {
+        StringBuilder unescaped = new StringBuilder();
+        for (int i = 0; i < commandLine.length(); i++) {
+            char c = commandLine.charAt(i);
+            if (c == '^') {
+                i++;
+                AssertJUnit.assertTrue("Caret at the end of " + commandLine, i < commandLine.length());
+                unescaped.append(commandLine.charAt(i));
+            } else {
+                AssertJUnit.assertTrue("Unescaped '" + c + "' in " + commandLine, "()%!\"<>&|".indexOf(c) < 0);
+                unescaped.append(c);
+            }
+        }
+
+        List<String> arguments = new ArrayList<>();
+        StringBuilder argument = null;
+        boolean quoted = false;
+        int backslashes = 0;
+        for (int i = 0; i < unescaped.length(); i++) {
+            char c = unescaped.charAt(i);
+            if (c == '\\') {
+                backslashes++;
+                continue;
+            }
+            if (argument == null) {
+                if (c == ' ' || c == '\t') {
+                    backslashes = 0;
+                    continue;
+                }
+                argument = new StringBuilder();
+            }
+            if (c == '"') {
+                appendBackslashes(argument, backslashes / 2);
+                if (backslashes % 2 == 1) {
+                    argument.append('"');
+                } else {
+                    quoted = !quoted;
+                }
+            } else {
+                appendBackslashes(argument, backslashes);
+                if (!quoted && (c == ' ' || c == '\t')) {
+                    arguments.add(argument.toString());
+                    argument = null;
+                } else {
+                    argument.append(c);
+                }
+            }
+            backslashes = 0;
+        }
+        if (backslashes > 0) {
+            if (argument == null) {
+                argument = new StringBuilder();
+            }
+            appendBackslashes(argument, backslashes);
+        }
+        AssertJUnit.assertFalse("Unterminated quotes in " + commandLine, quoted);
+        if (argument != null) {
+            arguments.add(argument.toString());
+        }
+        return arguments;
+    }
+
+    private void appendBackslashes(StringBuilder sb, int count) {
+        for (int i = 0; i < count; i++) {
+            sb.append('\\');
+        }
+    }
+}
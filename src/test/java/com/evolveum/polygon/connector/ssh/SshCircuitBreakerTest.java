@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.testng.AssertJUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+public class SshCircuitBreakerTest {
+
+    private static final long COOL_DOWN = 200;
+
+    @AfterMethod
+    public void reset() {
+        SshCircuitBreaker.resetAll();
+        SshConcurrencyLimiter.resetAll();
+    }
+
+    @Test
+    public void testOpensAfterThreshold() {
+        SshCircuitBreaker breaker = SshCircuitBreaker.forHost("dead.example.com:22");
+
+        for (int i = 0; i < 3; i++) {
+            breaker.acquirePermission(COOL_DOWN);
+            breaker.recordFailure(3);
+        }
+
+        AssertJUnit.assertEquals(SshCircuitBreaker.State.OPEN, breaker.getState());
+        assertRejected(breaker);
+        AssertJUnit.assertEquals(1, breaker.getRejectedCount());
+        AssertJUnit.assertSame(breaker, SshCircuitBreaker.getBreakers().get("dead.example.com:22"));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        SshCircuitBreaker breaker = SshCircuitBreaker.forHost("flaky.example.com:22");
+
+        breaker.recordFailure(3);
+        breaker.recordFailure(3);
+        breaker.recordSuccess();
+        breaker.recordFailure(3);
+
+        AssertJUnit.assertEquals(SshCircuitBreaker.State.CLOSED, breaker.getState());
+        AssertJUnit.assertEquals(1, breaker.getConsecutiveFailures());
+        AssertJUnit.assertEquals(3, breaker.getFailureCount());
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        SshCircuitBreaker breaker = SshCircuitBreaker.forHost("recovering.example.com:22");
+        breaker.recordFailure(1);
+        AssertJUnit.assertEquals(SshCircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(COOL_DOWN + 50);
+        // Single probe is let through, other attempts fail fast while it is in progress
+        breaker.acquirePermission(COOL_DOWN);
+        AssertJUnit.assertEquals(SshCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertRejected(breaker);
+
+        // Failed probe opens the breaker again
+        breaker.recordFailure(1);
+        AssertJUnit.assertEquals(SshCircuitBreaker.State.OPEN, breaker.getState());
+        assertRejected(breaker);
+
+        Thread.sleep(COOL_DOWN + 50);
+        breaker.acquirePermission(COOL_DOWN);
+        breaker.recordSuccess();
+        AssertJUnit.assertEquals(SshCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquirePermission(COOL_DOWN);
+    }
+
+    @Test
+    public void testConnectorFailsFast() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            // Nobody listens on this port after the socket is closed
+            port = socket.getLocalPort();
+        }
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setHost("localhost");
+        configuration.setPort(port);
+        configuration.setUsername(EmbeddedSshServer.USERNAME);
+        configuration.setCircuitBreakerThreshold(2);
+        configuration.setCircuitBreakerCoolDown(60000);
+        SshConnector connector = new SshConnector();
+        connector.init(configuration);
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    connector.test();
+                    AssertJUnit.fail("Unexpected success");
+                } catch (ConnectionFailedException e) {
+                    AssertJUnit.assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+            try {
+                connector.test();
+                AssertJUnit.fail("Unexpected success");
+            } catch (ConnectionFailedException e) {
+                AssertJUnit.assertNull("Connection was attempted", e.getCause());
+            }
+            SshCircuitBreaker breaker = SshCircuitBreaker.forHost("localhost:" + port);
+            AssertJUnit.assertEquals(SshCircuitBreaker.State.OPEN, breaker.getState());
+            AssertJUnit.assertEquals(1, breaker.getRejectedCount());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testProbeWaitingForConcurrencyLimit() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            // Nobody listens on this port after the socket is closed
+            port = socket.getLocalPort();
+        }
+        SshConfiguration configuration = new SshConfiguration();
+        configuration.setHost("localhost");
+        configuration.setPort(port);
+        configuration.setUsername(EmbeddedSshServer.USERNAME);
+        configuration.setCircuitBreakerThreshold(1);
+        configuration.setCircuitBreakerCoolDown((int) COOL_DOWN);
+        configuration.setConcurrencyLimit(1);
+        configuration.setMaxConcurrencyLimit(1);
+        configuration.setConcurrencyLimitWait(50);
+        SshConnector connector = new SshConnector();
+        connector.init(configuration);
+        try {
+            assertConnectFailed(connector, true);
+            SshCircuitBreaker breaker = SshCircuitBreaker.forHost("localhost:" + port);
+            AssertJUnit.assertEquals(SshCircuitBreaker.State.OPEN, breaker.getState());
+            Thread.sleep(COOL_DOWN + 50);
+
+            // The probe cannot get through the concurrency limit, it must not leave the breaker half-open
+            SshConcurrencyLimiter limiter = SshConcurrencyLimiter.forHost("localhost:" + port, 1, 1);
+            long permit = limiter.acquire(0);
+            assertConnectFailed(connector, false);
+            AssertJUnit.assertEquals(1, limiter.getRejectedCount());
+            AssertJUnit.assertEquals(SshCircuitBreaker.State.OPEN, breaker.getState());
+            limiter.release(permit, SshConcurrencyLimiter.Outcome.IGNORED);
+
+            // Next probe gets to the host
+            assertConnectFailed(connector, true);
+            AssertJUnit.assertEquals(SshCircuitBreaker.State.OPEN, breaker.getState());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    private void assertConnectFailed(SshConnector connector, boolean attempted) {
+        try {
+            connector.test();
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConnectionFailedException e) {
+            AssertJUnit.assertEquals(e.getMessage(), attempted, e.getCause() instanceof IOException);
+        }
+    }
+
+    private void assertRejected(SshCircuitBreaker breaker) {
+        try {
+            breaker.acquirePermission(COOL_DOWN);
+            AssertJUnit.fail("Breaker did not reject the attempt");
+        } catch (ConnectionFailedException e) {
+            // expected
+        }
+    }
+}
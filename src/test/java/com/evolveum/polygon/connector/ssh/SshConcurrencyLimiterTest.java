@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.testng.AssertJUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.evolveum.polygon.connector.ssh.SshConcurrencyLimiter.Outcome.DROPPED;
+import static com.evolveum.polygon.connector.ssh.SshConcurrencyLimiter.Outcome.IGNORED;
+import static com.evolveum.polygon.connector.ssh.SshConcurrencyLimiter.Outcome.SUCCESS;
+
+public class SshConcurrencyLimiterTest {
+
+    @AfterMethod
+    public void reset() {
+        SshConcurrencyLimiter.resetAll();
+    }
+
+    @Test
+    public void testAdditiveIncrease() {
+        SshConcurrencyLimiter limiter = SshConcurrencyLimiter.forHost("grow.example.com:22", 2, 3);
+
+        // Successful attempts at the limit raise the limit by 1/limit each
+        for (int i = 0; i < 3; i++) {
+            long first = limiter.acquire(0);
+            long second = limiter.acquire(0);
+            limiter.release(second, SUCCESS);
+            limiter.release(first, SUCCESS);
+        }
+        AssertJUnit.assertEquals(3, limiter.getLimit());
+
+        // Never over the maximum
+        for (int i = 0; i < 10; i++) {
+            long first = limiter.acquire(0);
+            long second = limiter.acquire(0);
+            long third = limiter.acquire(0);
+            limiter.release(third, SUCCESS);
+            limiter.release(second, SUCCESS);
+            limiter.release(first, SUCCESS);
+        }
+        AssertJUnit.assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void testNoIncreaseBelowLimit() {
+        SshConcurrencyLimiter limiter = SshConcurrencyLimiter.forHost("idle.example.com:22", 4, 100);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.release(limiter.acquire(0), SUCCESS);
+        }
+
+        AssertJUnit.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testMultiplicativeDecrease() {
+        SshConcurrencyLimiter limiter = SshConcurrencyLimiter.forHost("busy.example.com:22", 8, 100);
+        long[] permits = new long[8];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = limiter.acquire(0);
+        }
+
+        // All the attempts that were in progress at once are dropped, the limit is halved just once
+        for (long permit : permits) {
+            limiter.release(permit, DROPPED);
+        }
+        AssertJUnit.assertEquals(4, limiter.getLimit());
+        AssertJUnit.assertEquals(8, limiter.getDroppedCount());
+
+        limiter.release(limiter.acquire(0), DROPPED);
+        AssertJUnit.assertEquals(2, limiter.getLimit());
+
+        limiter.release(limiter.acquire(0), IGNORED);
+        AssertJUnit.assertEquals(2, limiter.getLimit());
+        AssertJUnit.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testSlowConnection() throws Exception {
+        SshConcurrencyLimiter limiter = SshConcurrencyLimiter.forHost("slow.example.com:22", 10, 100);
+        limiter.release(limiter.acquire(0), SUCCESS);
+
+        long permit = limiter.acquire(0);
+        Thread.sleep(120);
+        limiter.release(permit, SUCCESS);
+
+        AssertJUnit.assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void testBoundedWait() throws Exception {
+        SshConcurrencyLimiter limiter = SshConcurrencyLimiter.forHost("full.example.com:22", 1, 1);
+        long permit = limiter.acquire(0);
+
+        try {
+            limiter.acquire(50);
+            AssertJUnit.fail("Attempt over the limit was not rejected");
+        } catch (ConnectionFailedException e) {
+            // expected
+        }
+        AssertJUnit.assertEquals(1, limiter.getRejectedCount());
+
+        // Waiting attempt gets the slot when it is released
+        CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> limiter.acquire(10000));
+        Thread.sleep(50);
+        AssertJUnit.assertFalse(waiting.isDone());
+        limiter.release(permit, SUCCESS);
+        limiter.release(waiting.get(5, TimeUnit.SECONDS), SUCCESS);
+        AssertJUnit.assertEquals(0, limiter.getInFlight());
+    }
+}
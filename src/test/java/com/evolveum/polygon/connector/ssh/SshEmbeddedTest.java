@@ -0,0 +1,963 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JcePEMEncryptorBuilder;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Test against embedded SSH server. Runs on any UNIX-like system, no special setup is needed.
+ */
+public class SshEmbeddedTest extends AbstractSshTest {
+
+    private static final String COMMAND_MIXED = "fixture-mixed";
+    private static final String PASSPHRASE = "open sesame";
+
+    private KeyPair keyPair;
+
+    @Override
+    protected void customizeServer(EmbeddedSshServer server) {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        server.setAuthorizedKey(keyPair.getPublic());
+
+        // Large output on both streams at once. Reading the streams one after another would deadlock.
+        server.addCommand(COMMAND_MIXED, (argument, out, err) -> {
+            byte[] line = "0123456789012345678901234567890123456789012345678901234567890123\n".getBytes(StandardCharsets.UTF_8);
+            int lines = Integer.parseInt(argument);
+            for (int i = 0; i < lines; i++) {
+                out.write(line);
+                err.write(line);
+            }
+            out.flush();
+            err.flush();
+            return 0;
+        });
+    }
+
+    @Override
+    protected String getLaguage() {
+        return "bash";
+    }
+
+    @Override
+    protected void ping(ConnectorFacade connector) {
+        ScriptContext context = new ScriptContext(getLaguage(), "echo \"Hello World\"", null);
+        Object output = connector.runScriptOnResource(context, null);
+
+        AssertJUnit.assertEquals("Hello World\n", output);
+    }
+
+    @Test
+    public void testEmulatedEcho() throws Exception {
+        ConnectorFacade connector = setupConnector();
+
+        Object output = connector.runScriptOnResource(
+                new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " Hello World", null), null);
+
+        AssertJUnit.assertEquals("Hello World\n", output);
+    }
+
+    @Test
+    public void testVariablesBash() throws Exception {
+        ConnectorFacade connector = setupConnector(config -> config.setArgumentStyle(SshConfiguration.ARGUMENT_STYLE_VARIABLES_BASH));
+
+        Map<String, Object> args = new HashMap<>();
+        args.put("foo", "it's bar baz");
+        Object output = connector.runScriptOnResource(new ScriptContext(getLaguage(), "echo \"$foo\"", args), null);
+
+        AssertJUnit.assertEquals("it's bar baz\n", output);
+    }
+
+    @Test
+    public void testDashDashQuoted() throws Exception {
+        ConnectorFacade connector = setupConnector(config -> {
+            config.setArgumentStyle(SshConfiguration.ARGUMENT_STYLE_DASHDASH);
+            config.setQuoteOptionValues(true);
+        });
+
+        Map<String, Object> args = new HashMap<>();
+        args.put("foo", "it's; bar $baz");
+        Object output = connector.runScriptOnResource(new ScriptContext(getLaguage(), "printf '%s\\n'", args), null);
+
+        AssertJUnit.assertEquals("--foo=it's; bar $baz\n", output);
+    }
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        ConnectorFacade connector = setupConnector();
+
+        Object output = connector.runScriptOnResource(
+                new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_OUTPUT + " 1048576", null), null);
+
+        AssertJUnit.assertEquals(1048576, ((String) output).length());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setCompression(true);
+            config.setCompressionLevel(1);
+        });
+        try {
+            Object output = connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_OUTPUT + " 1048576", null), null);
+
+            AssertJUnit.assertEquals(1048576, ((String) output).length());
+            SshCompression.Statistics statistics = SshCompression.getStatistics().get(getHostname() + ":" + getPort());
+            AssertJUnit.assertTrue("Output was not compressed: " + statistics, statistics.getPayloadBytesReceived() > 1048576);
+            AssertJUnit.assertTrue("Output was not compressed: " + statistics, statistics.getReceivedRatio() < 0.1);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testLargeOutputTruncated() throws Exception {
+        ConnectorFacade connector = setupConnector(config -> config.setMaxOutputSize(1000));
+
+        Object output = connector.runScriptOnResource(
+                new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_OUTPUT + " 1048576", null), null);
+
+        AssertJUnit.assertEquals(1000, ((String) output).length());
+    }
+
+    @Test
+    public void testLargeOutputSpooled() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setMaxOutputSize(1000);
+            config.setOutputOverflow(SshConfiguration.OUTPUT_OVERFLOW_SPOOL);
+        });
+        try {
+            Object output = connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_OUTPUT + " 1048576", null), null);
+
+            AssertJUnit.assertTrue("Expected file, got " + output, output instanceof File);
+            File file = (File) output;
+            AssertJUnit.assertEquals(1048576, file.length());
+            AssertJUnit.assertTrue(file.delete());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStructuredResultSpooled() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setMaxOutputSize(1000);
+            config.setOutputOverflow(SshConfiguration.OUTPUT_OVERFLOW_SPOOL);
+            config.setResultMode(SshConfiguration.RESULT_MODE_STRUCTURED);
+        });
+        try {
+            Map<String, Object> result = (Map<String, Object>) connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_OUTPUT + " 1048576", null), null);
+
+            AssertJUnit.assertNull(result.get(CommandResult.KEY_STDOUT));
+            AssertJUnit.assertEquals(1048576L, result.get(CommandResult.KEY_STDOUT_BYTES));
+            AssertJUnit.assertEquals(Boolean.FALSE, result.get(CommandResult.KEY_TRUNCATED));
+            Object path = result.get(CommandResult.KEY_STDOUT_FILE);
+            AssertJUnit.assertTrue("Expected path, got " + path, path instanceof String);
+            File file = new File((String) path);
+            AssertJUnit.assertEquals(1048576, file.length());
+            AssertJUnit.assertTrue(file.delete());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testStderrNoise() throws Exception {
+        ConnectorFacade connector = setupConnector();
+
+        try {
+            connector.runScriptOnResource(new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_STDERR + " 10", null), null);
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConnectorException e) {
+            AssertJUnit.assertTrue("Unexpected message: " + e.getMessage(), e.getMessage().contains("noise 9"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLargeErrorOutputBounded() throws Exception {
+        // Default maxErrorOutputSize, no limit of standard output
+        ConnectorFacade connector = setupConnector(config -> config.setResultMode(SshConfiguration.RESULT_MODE_STRUCTURED));
+
+        Map<String, Object> result = (Map<String, Object>) connector.runScriptOnResource(
+                new ScriptContext(getLaguage(), "yes | head -c 1000000 >&2", null), null);
+
+        AssertJUnit.assertEquals(65536, ((String) result.get(CommandResult.KEY_STDERR)).length());
+        AssertJUnit.assertEquals(1000000L, result.get(CommandResult.KEY_STDERR_BYTES));
+    }
+
+    @Test
+    public void testSpoolFileDeletedOnFailure() throws Exception {
+        ConnectorFacade connector = setupConnector(config -> {
+            config.setMaxOutputSize(1000);
+            config.setOutputOverflow(SshConfiguration.OUTPUT_OVERFLOW_SPOOL);
+            config.setErrorDetection(SshConfiguration.ERROR_DETECTION_EXIT_STATUS);
+        });
+        Set<String> spoolFilesBefore = listSpoolFiles();
+
+        try {
+            connector.runScriptOnResource(new ScriptContext(getLaguage(), "yes | head -c 100000; exit 1", null), null);
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConnectorException e) {
+            // expected
+        }
+
+        AssertJUnit.assertEquals("Spool file left behind", spoolFilesBefore, listSpoolFiles());
+    }
+
+    private Set<String> listSpoolFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list((dir, name) -> name.startsWith("connector-ssh-"));
+        return names == null ? new HashSet<>() : new HashSet<>(Arrays.asList(names));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStructuredResult() throws Exception {
+        ConnectorFacade connector = setupConnector(config -> config.setResultMode(SshConfiguration.RESULT_MODE_STRUCTURED));
+
+        Map<String, Object> result = (Map<String, Object>) connector.runScriptOnResource(
+                new ScriptContext(getLaguage(), "echo out; echo err >&2; exit 3", null), null);
+
+        AssertJUnit.assertEquals(Boolean.FALSE, result.get(CommandResult.KEY_SUCCESS));
+        AssertJUnit.assertEquals(3, result.get(CommandResult.KEY_EXIT_STATUS));
+        AssertJUnit.assertNull(result.get(CommandResult.KEY_EXIT_SIGNAL));
+        AssertJUnit.assertEquals("out\n", result.get(CommandResult.KEY_STDOUT));
+        AssertJUnit.assertEquals("err\n", result.get(CommandResult.KEY_STDERR));
+        AssertJUnit.assertEquals(4L, result.get(CommandResult.KEY_STDOUT_BYTES));
+        AssertJUnit.assertEquals(4L, result.get(CommandResult.KEY_STDERR_BYTES));
+        Map<String, Object> durations = (Map<String, Object>) result.get(CommandResult.KEY_DURATIONS);
+        for (String phase : new String[] { "connect", "kex", "auth", "session", "exec", "read", CommandResult.KEY_TOTAL }) {
+            AssertJUnit.assertTrue("No duration of " + phase + " in " + durations, durations.get(phase) instanceof Double);
+        }
+    }
+
+    @Test
+    public void testErrorDetectionExitStatus() throws Exception {
+        ConnectorFacade connector = setupConnector(config -> config.setErrorDetection(SshConfiguration.ERROR_DETECTION_EXIT_STATUS));
+
+        Object output = connector.runScriptOnResource(new ScriptContext(getLaguage(), "echo warning >&2; echo done", null), null);
+        AssertJUnit.assertEquals("done\n", output);
+        try {
+            connector.runScriptOnResource(new ScriptContext(getLaguage(), "exit 2", null), null);
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConnectorException e) {
+            AssertJUnit.assertTrue("Unexpected message: " + e.getMessage(), e.getMessage().contains("exit status 2"));
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testLargeOutputOnBothStreams() throws Exception {
+        ConnectorFacade connector = setupConnector();
+
+        try {
+            connector.runScriptOnResource(new ScriptContext(getLaguage(), COMMAND_MIXED + " 100000", null), null);
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConnectorException e) {
+            // Expected, there is error output
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testCommandTimeout() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> config.setCommandTimeout(500));
+        try {
+            connector.runScriptOnResource(new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_SLEEP + " 60000", null), null);
+            AssertJUnit.fail("Unexpected success");
+        } catch (OperationTimeoutException e) {
+            // Expected
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testIdleReadTimeout() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> config.setIdleReadTimeout(500));
+        try {
+            connector.runScriptOnResource(new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_SLEEP + " 60000", null), null);
+            AssertJUnit.fail("Unexpected success");
+        } catch (OperationTimeoutException e) {
+            // Expected
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testPersistentConnection() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> config.setConnectionMode(SshConfiguration.CONNECTION_MODE_PERSISTENT));
+        try {
+            int authBefore = getServer().getAuthCount();
+            for (int i = 0; i < 5; i++) {
+                Object output = connector.runScriptOnResource(
+                        new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " " + i, null), null);
+                AssertJUnit.assertEquals(i + "\n", output);
+            }
+            AssertJUnit.assertEquals("Unexpected number of authentications", 1, getServer().getAuthCount() - authBefore);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testSharedConnection() throws Exception {
+        SshConnector connector1 = setupConnectorInstance(config -> config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED));
+        SshConnector connector2 = setupConnectorInstance(config -> config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED));
+        try {
+            int authBefore = getServer().getAuthCount();
+            for (int i = 0; i < 3; i++) {
+                AssertJUnit.assertEquals("one\n", connector1.runScriptOnResource(
+                        new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " one", null), null));
+                AssertJUnit.assertEquals("two\n", connector2.runScriptOnResource(
+                        new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " two", null), null));
+            }
+            AssertJUnit.assertEquals("Unexpected number of authentications", 1, getServer().getAuthCount() - authBefore);
+        } finally {
+            connector1.dispose();
+            connector2.dispose();
+            SshConnectionManager.getInstance().closeAll();
+        }
+    }
+
+    @Test
+    public void testSharedConnectionCompressionNotShared() throws Exception {
+        SshConnector connector1 = setupConnectorInstance(config -> config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED));
+        SshConnector connector2 = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED);
+            config.setCompression(true);
+        });
+        try {
+            int authBefore = getServer().getAuthCount();
+            AssertJUnit.assertEquals("one\n", connector1.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " one", null), null));
+            AssertJUnit.assertEquals("two\n", connector2.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " two", null), null));
+            AssertJUnit.assertEquals("Connection shared despite different compression", 2, getServer().getAuthCount() - authBefore);
+        } finally {
+            connector1.dispose();
+            connector2.dispose();
+            SshConnectionManager.getInstance().closeAll();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testSharedConnectionClosedAfterDiscard() throws Exception {
+        SshConnectionManager manager = SshConnectionManager.getInstance();
+        String key = EmbeddedSshServer.USERNAME + "@" + getHostname() + ":" + getPort() + "/discard";
+        SshConnectionManager.ConnectionFactory factory = () -> {
+            SSHClient client = new SSHClient();
+            client.addHostKeyVerifier(new PromiscuousVerifier());
+            try {
+                client.connect(getHostname(), getPort());
+                client.authPassword(EmbeddedSshServer.USERNAME, EmbeddedSshServer.PASSWORD);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return client;
+        };
+        try {
+            SshConnectionManager.SharedConnection first = manager.acquire(key, 2, factory);
+            // Another user of the same connection, in another thread
+            SshConnectionManager.SharedConnection second = CompletableFuture.supplyAsync(() -> manager.acquire(key, 2, factory)).get();
+            AssertJUnit.assertSame(first, second);
+            SSHClient client = first.getClient();
+
+            manager.invalidate(first);
+            AssertJUnit.assertTrue("Connection closed while it is still used", client.isConnected());
+
+            CompletableFuture.runAsync(() -> manager.release(second)).get();
+            AssertJUnit.assertFalse("Discarded connection was not closed by its last user", client.isConnected());
+        } finally {
+            manager.closeAll();
+        }
+    }
+
+    @Test
+    public void testHostFailover() throws Exception {
+        int port = getClosedPort();
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setHost("localhost:" + port + ", " + config.getHost() + ":" + config.getPort());
+            config.setHostSelectionStrategy(SshConfiguration.HOST_SELECTION_ORDERED);
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_PERSISTENT);
+        });
+        try {
+            AssertJUnit.assertEquals("failover\n", connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " failover", null), null));
+            SshHost deadHost = SshHost.forHost("localhost", port);
+            AssertJUnit.assertEquals(1, deadHost.getConnectFailureCount());
+            AssertJUnit.assertFalse(deadHost.isHealthy(60000));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testHostRoundRobin() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setHost(config.getHost() + ":" + config.getPort() + ",127.0.0.1:" + config.getPort());
+            config.setHostSelectionStrategy(SshConfiguration.HOST_SELECTION_ROUND_ROBIN);
+        });
+        SshHost localhost = SshHost.forHost(getHostname(), getPort());
+        SshHost loopback = SshHost.forHost("127.0.0.1", getPort());
+        long localhostBefore = localhost.getOperationCount();
+        long loopbackBefore = loopback.getOperationCount();
+        try {
+            for (int i = 0; i < 4; i++) {
+                AssertJUnit.assertEquals(i + "\n", connector.runScriptOnResource(
+                        new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " " + i, null), null));
+            }
+            AssertJUnit.assertEquals(2, localhost.getOperationCount() - localhostBefore);
+            AssertJUnit.assertEquals(2, loopback.getOperationCount() - loopbackBefore);
+            AssertJUnit.assertEquals(0, localhost.getInFlight());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    @SuppressWarnings("unchecked")
+    public void testFanOut() throws Exception {
+        int deadPort = getClosedPort();
+        String live1 = getHostname() + ":" + getPort();
+        String live2 = "127.0.0.1:" + getPort();
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setHostGroups(new String[] { "all=" + live1 + ", localhost:" + deadPort + ", " + live2 });
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_PERSISTENT);
+        });
+        try {
+            for (int i = 0; i < 2; i++) {
+                Map<String, Map<String, Object>> results = (Map<String, Map<String, Object>>) connector.runScriptOnResource(
+                        new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " fan", null), hostGroupOption("all"));
+
+                AssertJUnit.assertEquals(Arrays.asList(live1, "localhost:" + deadPort, live2), new ArrayList<>(results.keySet()));
+                AssertJUnit.assertEquals(Boolean.TRUE, results.get(live1).get(CommandResult.KEY_SUCCESS));
+                AssertJUnit.assertEquals("fan\n", results.get(live1).get(CommandResult.KEY_RESULT));
+                AssertJUnit.assertEquals("fan\n", results.get(live2).get(CommandResult.KEY_RESULT));
+                AssertJUnit.assertTrue((Double) results.get(live2).get(CommandResult.KEY_DURATION) > 0);
+                Map<String, Object> dead = results.get("localhost:" + deadPort);
+                AssertJUnit.assertEquals(Boolean.FALSE, dead.get(CommandResult.KEY_SUCCESS));
+                AssertJUnit.assertNotNull(dead.get(CommandResult.KEY_ERROR));
+                AssertJUnit.assertFalse(dead.containsKey(CommandResult.KEY_RESULT));
+            }
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testFanOutFailFast() throws Exception {
+        int deadPort = getClosedPort();
+        String live = getHostname() + ":" + getPort();
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setHostGroups(new String[] { "all=localhost:" + deadPort + " " + live });
+            config.setFanOutParallelism(1);
+            config.setFanOutFailureMode(SshConfiguration.FAN_OUT_FAILURE_MODE_FAIL_FAST);
+        });
+        try {
+            connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " fan", null), hostGroupOption("all"));
+            AssertJUnit.fail("Unexpected success");
+        } catch (ConnectorException e) {
+            AssertJUnit.assertTrue(e.getMessage(), e.getMessage().contains("not started on 1 hosts: " + live));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testAsyncScripts() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED);
+            config.setMaxChannelsPerConnection(10);
+            config.setMaxAsyncOperations(20);
+        });
+        try {
+            int authBefore = getServer().getAuthCount();
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                futures.add(connector.runScriptOnResourceAsync(
+                        new ScriptContext(getLaguage(), "sleep 0.2; echo " + i, null), null));
+            }
+            for (int i = 0; i < 40; i++) {
+                AssertJUnit.assertEquals(i + "\n", futures.get(i).get());
+            }
+            long duration = System.currentTimeMillis() - start;
+            // 40 scripts of 200 ms, 20 at a time: about 400 ms instead of 8 seconds
+            AssertJUnit.assertTrue("Scripts were not executed in parallel: " + duration + " ms", duration < 4000);
+            AssertJUnit.assertTrue("Too many connections: " + (getServer().getAuthCount() - authBefore),
+                    getServer().getAuthCount() - authBefore <= 2);
+
+            CompletableFuture<Object> failed = connector.runScriptOnResourceAsync(
+                    new ScriptContext(getLaguage(), "echo oops >&2", null), null);
+            try {
+                failed.get();
+                AssertJUnit.fail("Unexpected success");
+            } catch (ExecutionException e) {
+                AssertJUnit.assertTrue(e.getCause() instanceof ConnectorException);
+            }
+        } finally {
+            connector.dispose();
+            SshConnectionManager.getInstance().closeAll();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testConcurrencyLimit() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setConcurrencyLimit(2);
+            config.setMaxConcurrencyLimit(2);
+        });
+        try {
+            List<CompletableFuture<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(connector.runScriptOnResourceAsync(
+                        new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " " + i, null), null));
+            }
+            for (int i = 0; i < 10; i++) {
+                AssertJUnit.assertEquals(i + "\n", futures.get(i).get());
+            }
+            SshConcurrencyLimiter limiter = SshConcurrencyLimiter.getLimiters().get(getHostname() + ":" + getPort());
+            AssertJUnit.assertEquals(0, limiter.getInFlight());
+            AssertJUnit.assertTrue("Limit over maximum: " + limiter.getLimit(), limiter.getLimit() <= 2);
+            AssertJUnit.assertTrue(limiter.getSuccessCount() >= 10);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    private OperationOptions hostGroupOption(String hostGroup) {
+        return new OperationOptionsBuilder().setOption(SshConnector.OPTION_HOST_GROUP, hostGroup).build();
+    }
+
+    private int getClosedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            // Nobody listens on this port after the socket is closed
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testSharedConnectionsEstablishedAhead() throws Exception {
+        int authBefore = getServer().getAuthCount();
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED);
+            config.setMinIdleConnections(2);
+        });
+        try {
+            awaitCondition(() -> getServer().getAuthCount() - authBefore == 2);
+            AssertJUnit.assertEquals("one\n", connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " one", null), null));
+            AssertJUnit.assertEquals("Unexpected number of authentications", 2, getServer().getAuthCount() - authBefore);
+        } finally {
+            connector.dispose();
+            SshConnectionManager.getInstance().closeAll();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testSharedConnectionIdleTimeout() throws Exception {
+        // Connections of previous tests are closed asynchronously
+        awaitCondition(() -> getServer().getActiveConnectionCount() == 0);
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED);
+            config.setIdleConnectionTimeout(200);
+        });
+        try {
+            AssertJUnit.assertEquals("one\n", connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " one", null), null));
+            AssertJUnit.assertEquals(1, getServer().getActiveConnectionCount());
+            // Closed by the background maintenance
+            awaitCondition(() -> getServer().getActiveConnectionCount() == 0);
+            AssertJUnit.assertEquals("two\n", connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " two", null), null));
+        } finally {
+            connector.dispose();
+            SshConnectionManager.getInstance().closeAll();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testPersistentConnectionIdleTimeout() throws Exception {
+        awaitCondition(() -> getServer().getActiveConnectionCount() == 0);
+        int authBefore = getServer().getAuthCount();
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_PERSISTENT);
+            config.setMinIdleConnections(1);
+        });
+        SshConnector idleConnector = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_PERSISTENT);
+            config.setIdleConnectionTimeout(200);
+        });
+        try {
+            // Connected in init
+            AssertJUnit.assertEquals("Unexpected number of authentications", 1, getServer().getAuthCount() - authBefore);
+
+            AssertJUnit.assertEquals("one\n", idleConnector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " one", null), null));
+            AssertJUnit.assertEquals("Unexpected number of authentications", 2, getServer().getAuthCount() - authBefore);
+            AssertJUnit.assertEquals(2, getServer().getActiveConnectionCount());
+            Thread.sleep(400);
+            idleConnector.checkAlive();
+            awaitCondition(() -> getServer().getActiveConnectionCount() == 1);
+            AssertJUnit.assertEquals("two\n", idleConnector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " two", null), null));
+            AssertJUnit.assertEquals("Unexpected number of authentications", 3, getServer().getAuthCount() - authBefore);
+        } finally {
+            connector.dispose();
+            idleConnector.dispose();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testAsyncWorkerIdleTimeout() throws Exception {
+        awaitCondition(() -> getServer().getActiveConnectionCount() == 0);
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_PERSISTENT);
+            config.setIdleConnectionTimeout(200);
+        });
+        try {
+            AssertJUnit.assertEquals("one\n", connector.runScriptOnResourceAsync(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " one", null), null).get());
+            AssertJUnit.assertEquals(1, getServer().getActiveConnectionCount());
+            Thread.sleep(400);
+            // Idle connections of asynchronous workers are closed together with the connection of the instance
+            connector.checkAlive();
+            awaitCondition(() -> getServer().getActiveConnectionCount() == 0);
+            AssertJUnit.assertEquals("two\n", connector.runScriptOnResourceAsync(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " two", null), null).get());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        SshMetrics.getInstance().reset();
+        SshConnector connector = setupConnectorInstance(config -> config.setMetricsListener(RecordingListener.class.getName()));
+        try {
+            int phasesBefore = RecordingListener.PHASES.size();
+            connector.runScriptOnResource(new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_OUTPUT + " 1000", null), null);
+
+            String host = getHostname() + ":" + getPort();
+            for (SshMetrics.Phase phase : new SshMetrics.Phase[] { SshMetrics.Phase.CONNECT, SshMetrics.Phase.KEX, SshMetrics.Phase.AUTH }) {
+                PhaseStatistics statistics = SshMetrics.getInstance().getPhaseStatistics(host, null, phase);
+                AssertJUnit.assertNotNull("No statistics for " + phase, statistics);
+                AssertJUnit.assertEquals(1, statistics.getCount());
+                AssertJUnit.assertEquals(0, statistics.getFailures());
+            }
+            for (SshMetrics.Phase phase : new SshMetrics.Phase[] { SshMetrics.Phase.SESSION, SshMetrics.Phase.EXEC, SshMetrics.Phase.READ }) {
+                PhaseStatistics statistics = SshMetrics.getInstance().getPhaseStatistics(host, getLaguage(), phase);
+                AssertJUnit.assertNotNull("No statistics for " + phase, statistics);
+                AssertJUnit.assertEquals(1, statistics.getCount());
+                AssertJUnit.assertTrue(statistics.getMaxMillis() >= statistics.getP50Millis());
+            }
+            AssertJUnit.assertEquals(1000, SshMetrics.getInstance().getPhaseStatistics(host, getLaguage(), SshMetrics.Phase.EXEC).getBytesReceived());
+            AssertJUnit.assertEquals(6, RecordingListener.PHASES.size() - phasesBefore);
+
+            CompositeData[] jmxStatistics = (CompositeData[]) ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(new ObjectName(SshMetrics.OBJECT_NAME), "PhaseStatistics");
+            AssertJUnit.assertEquals(6, jmxStatistics.length);
+            AssertJUnit.assertEquals(host, jmxStatistics[0].get("host"));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    public static class RecordingListener implements SshMetricsListener {
+
+        private static final List<SshMetrics.Phase> PHASES = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void phaseCompleted(String host, String language, SshMetrics.Phase phase, long durationNanos, boolean success) {
+            PHASES.add(phase);
+        }
+    }
+
+    @Test
+    public void testShellExecution() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setConnectionMode(SshConfiguration.CONNECTION_MODE_PERSISTENT);
+            config.setExecutionMode(SshConfiguration.EXECUTION_MODE_SHELL);
+            config.setIdleReadTimeout(10000);
+        });
+        try {
+            int shellsBefore = getServer().getShellCount();
+            for (int i = 0; i < 5; i++) {
+                Object output = connector.runScriptOnResource(new ScriptContext(getLaguage(), "echo " + i, null), null);
+                AssertJUnit.assertEquals(i + "\n", output);
+            }
+            AssertJUnit.assertEquals("Unexpected number of shells", 1, getServer().getShellCount() - shellsBefore);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testShellStructuredResult() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setExecutionMode(SshConfiguration.EXECUTION_MODE_SHELL);
+            config.setIdleReadTimeout(10000);
+            config.setResultMode(SshConfiguration.RESULT_MODE_STRUCTURED);
+            config.setErrorDetection(SshConfiguration.ERROR_DETECTION_BOTH);
+        });
+        try {
+            Map<String, Object> result = (Map<String, Object>) connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), "echo out; false", null), null);
+            AssertJUnit.assertEquals(Boolean.FALSE, result.get(CommandResult.KEY_SUCCESS));
+            AssertJUnit.assertEquals(1, result.get(CommandResult.KEY_EXIT_STATUS));
+            AssertJUnit.assertEquals("out\n", result.get(CommandResult.KEY_STDOUT));
+
+            result = (Map<String, Object>) connector.runScriptOnResource(new ScriptContext(getLaguage(), "echo ok", null), null);
+            AssertJUnit.assertEquals(Boolean.TRUE, result.get(CommandResult.KEY_SUCCESS));
+            AssertJUnit.assertEquals(0, result.get(CommandResult.KEY_EXIT_STATUS));
+            AssertJUnit.assertEquals(3L, result.get(CommandResult.KEY_STDOUT_BYTES));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testShellSpoolRejected() throws Exception {
+        setupConnectorInstance(config -> {
+            config.setExecutionMode(SshConfiguration.EXECUTION_MODE_SHELL);
+            config.setIdleReadTimeout(10000);
+            config.setOutputOverflow(SshConfiguration.OUTPUT_OVERFLOW_SPOOL);
+        });
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testShellWithoutTimeoutRejected() throws Exception {
+        setupConnectorInstance(config -> config.setExecutionMode(SshConfiguration.EXECUTION_MODE_SHELL));
+    }
+
+    /**
+     * Unterminated quote makes the shell wait for the rest of the command, the sentinel never comes.
+     */
+    @Test(timeOut = 30000)
+    public void testShellSyntaxError() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setExecutionMode(SshConfiguration.EXECUTION_MODE_SHELL);
+            config.setIdleReadTimeout(500);
+        });
+        try {
+            try {
+                connector.runScriptOnResource(new ScriptContext(getLaguage(), "echo 'unterminated", null), null);
+                AssertJUnit.fail("Unexpected success");
+            } catch (OperationTimeoutException e) {
+                // Expected
+            }
+            Object output = connector.runScriptOnResource(new ScriptContext(getLaguage(), "echo again", null), null);
+            AssertJUnit.assertEquals("again\n", output);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testPowerShellMultiLineRejected() throws Exception {
+        ShellSession.Dialect.POWERSHELL.wrap("Get-Date\nGet-Host", "SSHCONN0");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testShellStructuredResultTruncated() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setExecutionMode(SshConfiguration.EXECUTION_MODE_SHELL);
+            config.setIdleReadTimeout(10000);
+            config.setResultMode(SshConfiguration.RESULT_MODE_STRUCTURED);
+            config.setMaxOutputSize(1000);
+        });
+        try {
+            Map<String, Object> result = (Map<String, Object>) connector.runScriptOnResource(
+                    new ScriptContext(getLaguage(), "yes | head -c 100000", null), null);
+            AssertJUnit.assertEquals(Boolean.TRUE, result.get(CommandResult.KEY_SUCCESS));
+            AssertJUnit.assertEquals(1000, ((String) result.get(CommandResult.KEY_STDOUT)).length());
+            AssertJUnit.assertEquals(100000L, result.get(CommandResult.KEY_STDOUT_BYTES));
+            AssertJUnit.assertEquals(Boolean.TRUE, result.get(CommandResult.KEY_TRUNCATED));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testShellCommandTimeout() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {
+            config.setExecutionMode(SshConfiguration.EXECUTION_MODE_SHELL);
+            config.setCommandTimeout(500);
+        });
+        try {
+            try {
+                connector.runScriptOnResource(new ScriptContext(getLaguage(), "sleep 60", null), null);
+                AssertJUnit.fail("Unexpected success");
+            } catch (OperationTimeoutException e) {
+                // Expected
+            }
+            // New shell is started for next command
+            Object output = connector.runScriptOnResource(new ScriptContext(getLaguage(), "echo again", null), null);
+            AssertJUnit.assertEquals("again\n", output);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    /**
+     * Encrypted private key is decoded only once, all the connector instances use the same key.
+     */
+    @Test
+    public void testPublicKeyAuthentication() throws Exception {
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter writer = new JcaPEMWriter(pem)) {
+            writer.writeObject(keyPair.getPrivate(), new JcePEMEncryptorBuilder("AES-128-CBC").build(PASSPHRASE.toCharArray()));
+        }
+        Consumer<SshConfiguration> publicKeyConfig = config -> {
+            config.setAuthenticationScheme(SshConfiguration.AUTHENTICATION_SCHEME_PUBLIC_KEY);
+            config.setPassword(null);
+            config.setPrivateKey(new GuardedString(pem.toString().toCharArray()));
+            config.setPassphrase(new GuardedString(PASSPHRASE.toCharArray()));
+        };
+        SshConnector connector1 = setupConnectorInstance(publicKeyConfig);
+        SshConnector connector2 = setupConnectorInstance(publicKeyConfig);
+        try {
+            AssertJUnit.assertEquals("one\n", connector1.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " one", null), null));
+            AssertJUnit.assertEquals("two\n", connector2.runScriptOnResource(
+                    new ScriptContext(getLaguage(), EmbeddedSshServer.COMMAND_ECHO + " two", null), null));
+
+            SshConfiguration config1 = (SshConfiguration) connector1.getConfiguration();
+            SshConfiguration config2 = (SshConfiguration) connector2.getConfiguration();
+            AssertJUnit.assertSame(SshResourceCache.getInstance().getKeyProvider(config1.getPrivateKey(), config1.getPassphrase()),
+                    SshResourceCache.getInstance().getKeyProvider(config2.getPrivateKey(), config2.getPassphrase()));
+        } finally {
+            connector1.dispose();
+            connector2.dispose();
+        }
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        String fingerprint = SshResourceCache.fingerprint(new GuardedString(PASSPHRASE.toCharArray()), "known");
+
+        AssertJUnit.assertEquals(fingerprint, SshResourceCache.fingerprint(new GuardedString(PASSPHRASE.toCharArray()), "known"));
+        AssertJUnit.assertFalse(fingerprint.equals(SshResourceCache.fingerprint(new GuardedString("other".toCharArray()), "known")));
+        // Keyed by per-process secret, plain digest of the secret cannot be matched to the fingerprint
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (char c : PASSPHRASE.toCharArray()) {
+            digest.update((byte) (c >> 8));
+            digest.update((byte) c);
+        }
+        digest.update((byte) 0);
+        digest.update("known".getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        AssertJUnit.assertFalse(fingerprint.equals(Base64.getEncoder().encodeToString(digest.digest())));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> {});
+        try {
+            List<CommandResult> results = connector.runScriptsOnResource(Arrays.asList(
+                    new ScriptContext(getLaguage(), "echo first", null),
+                    new ScriptContext(getLaguage(), "echo oops >&2; exit 3", null),
+                    new ScriptContext(getLaguage(), "echo third", null)), null);
+
+            AssertJUnit.assertEquals(3, results.size());
+            AssertJUnit.assertEquals("first\n", results.get(0).getOutput());
+            AssertJUnit.assertEquals(Integer.valueOf(0), results.get(0).getExitStatus());
+            AssertJUnit.assertEquals("oops\n", results.get(1).getError());
+            AssertJUnit.assertEquals(Integer.valueOf(3), results.get(1).getExitStatus());
+            AssertJUnit.assertEquals("third\n", results.get(2).getOutput());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    /**
+     * Batch is available through the connector facade as an operation option.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchOption() throws Exception {
+        ConnectorFacade facade = setupConnector(config -> {});
+        OperationOptions options = new OperationOptionsBuilder().setOption(SshConnector.OPTION_BATCH, true).build();
+
+        List<Map<String, Object>> results = (List<Map<String, Object>>) facade.runScriptOnResource(
+                new ScriptContext(getLaguage(), "echo first\n\necho oops >&2; exit 3\necho third", null), options);
+
+        AssertJUnit.assertEquals(3, results.size());
+        AssertJUnit.assertEquals(Boolean.TRUE, results.get(0).get(CommandResult.KEY_SUCCESS));
+        AssertJUnit.assertEquals("first\n", results.get(0).get(CommandResult.KEY_STDOUT));
+        AssertJUnit.assertEquals(Boolean.FALSE, results.get(1).get(CommandResult.KEY_SUCCESS));
+        AssertJUnit.assertEquals(3, results.get(1).get(CommandResult.KEY_EXIT_STATUS));
+        AssertJUnit.assertEquals("oops\n", results.get(1).get(CommandResult.KEY_STDERR));
+        AssertJUnit.assertEquals("third\n", results.get(2).get(CommandResult.KEY_STDOUT));
+    }
+
+    private void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(50);
+        }
+    }
+}
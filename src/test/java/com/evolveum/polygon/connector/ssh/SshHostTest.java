@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.testng.AssertJUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SshHostTest {
+
+    @AfterMethod
+    public void reset() {
+        SshHost.resetAll();
+    }
+
+    @Test
+    public void testParse() {
+        List<SshHost> hosts = SshHost.parse("one.example.com, two.example.com:2222\n[::1]:2200 fe80::1,one.example.com", 22);
+
+        AssertJUnit.assertEquals(4, hosts.size());
+        assertHost(hosts.get(0), "one.example.com", 22);
+        assertHost(hosts.get(1), "two.example.com", 2222);
+        assertHost(hosts.get(2), "::1", 2200);
+        assertHost(hosts.get(3), "fe80::1", 22);
+        AssertJUnit.assertEquals("one.example.com", hosts.get(0).getDesc());
+        AssertJUnit.assertEquals("two.example.com:2222", hosts.get(1).getDesc());
+        AssertJUnit.assertSame(hosts.get(1), SshHost.forHost("two.example.com", 2222));
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testParseInvalidPort() {
+        SshHost.parse("one.example.com:ssh", 22);
+    }
+
+    @Test
+    public void testRoundRobin() {
+        List<SshHost> hosts = SshHost.parse("a b c", 22);
+        HostSelectionStrategy strategy = StandardHostSelectionStrategy.forName(SshConfiguration.HOST_SELECTION_ROUND_ROBIN);
+
+        String first = strategy.order(hosts).get(0).getName();
+        String second = strategy.order(hosts).get(0).getName();
+        String third = strategy.order(hosts).get(0).getName();
+
+        AssertJUnit.assertEquals(3, strategy.order(hosts).size());
+        AssertJUnit.assertEquals(3, Arrays.asList(first, second, third).stream().distinct().count());
+    }
+
+    @Test
+    public void testLeastInFlight() {
+        List<SshHost> hosts = SshHost.parse("busy idle", 22);
+        hosts.get(0).operationStarted();
+
+        List<SshHost> ordered = StandardHostSelectionStrategy.forName(SshConfiguration.HOST_SELECTION_LEAST_IN_FLIGHT).order(hosts);
+
+        AssertJUnit.assertEquals("idle", ordered.get(0).getName());
+        hosts.get(0).operationFinished(1000, true);
+        AssertJUnit.assertEquals(0, hosts.get(0).getInFlight());
+    }
+
+    @Test(timeOut = 30000)
+    public void testLeastInFlightChangingWhileSorted() throws Exception {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            names.append("host").append(i).append(' ');
+        }
+        List<SshHost> hosts = SshHost.parse(names.toString(), 22);
+        HostSelectionStrategy strategy = StandardHostSelectionStrategy.forName(SshConfiguration.HOST_SELECTION_LEAST_IN_FLIGHT);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread load = new Thread(() -> {
+            Random random = new Random(42);
+            while (!done.get()) {
+                SshHost host = hosts.get(random.nextInt(hosts.size()));
+                host.operationStarted();
+                if (random.nextBoolean()) {
+                    host.operationFinished(1000, true);
+                }
+            }
+        });
+        load.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                List<SshHost> ordered = strategy.order(hosts);
+                AssertJUnit.assertEquals(hosts.size(), new HashSet<>(ordered).size());
+            }
+        } finally {
+            done.set(true);
+            load.join();
+        }
+    }
+
+    @Test
+    public void testLowestLatency() {
+        List<SshHost> hosts = SshHost.parse("slow fast", 22);
+        record(hosts.get(0), 50_000_000L);
+        record(hosts.get(1), 5_000_000L);
+
+        List<SshHost> ordered = StandardHostSelectionStrategy.forName(SshConfiguration.HOST_SELECTION_LOWEST_LATENCY).order(hosts);
+
+        AssertJUnit.assertEquals("fast", ordered.get(0).getName());
+        AssertJUnit.assertEquals(50.0, hosts.get(0).getAverageMillis(), 0.001);
+        // Recent operations weigh more than old ones, but a single one does not take over
+        record(hosts.get(0), 0L);
+        AssertJUnit.assertEquals(40.0, hosts.get(0).getAverageMillis(), 0.001);
+    }
+
+    @Test
+    public void testHealth() {
+        SshHost host = SshHost.forHost("down.example.com", 22);
+        AssertJUnit.assertTrue(host.isHealthy(60000));
+
+        host.connectFailed();
+        AssertJUnit.assertFalse(host.isHealthy(60000));
+        AssertJUnit.assertTrue("Host should be retried after the delay", host.isHealthy(0));
+
+        host.connectSucceeded();
+        AssertJUnit.assertTrue(host.isHealthy(60000));
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testUnknownStrategy() {
+        StandardHostSelectionStrategy.forName("random");
+    }
+
+    private void record(SshHost host, long durationNanos) {
+        host.operationStarted();
+        host.operationFinished(durationNanos, true);
+    }
+
+    private void assertHost(SshHost host, String name, int port) {
+        AssertJUnit.assertEquals(name, host.getName());
+        AssertJUnit.assertEquals(port, host.getPort());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.ssh;
+
+import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.testng.AssertJUnit;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Concurrent load test of runScriptOnResource against embedded SSH server.
+ *
+ * The defaults are small, so the test can run in every build and check that nothing breaks under concurrency.
+ * Use system properties for real measurements, e.g.:
+ *
+ * mvn test -Dtest=SshLoadTest -Dloadtest.threads=32 -Dloadtest.operations=1000 -Dloadtest.connectionMode=shared
+ *
+ * Supported properties: loadtest.threads, loadtest.warmup, loadtest.operations (per thread),
+ * loadtest.connectionMode, loadtest.executionMode, loadtest.command.
+ * If the modes are not specified, all the combinations are tested.
+ */
+public class SshLoadTest extends AbstractSshTest {
+
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 4);
+    private static final int WARMUP = Integer.getInteger("loadtest.warmup", 2);
+    private static final int OPERATIONS = Integer.getInteger("loadtest.operations", 10);
+    private static final String COMMAND = System.getProperty("loadtest.command", "echo Hello World");
+
+    /**
+     * More concurrent commands than platform threads of SshExecutionEngine.
+     */
+    private static final int CONCURRENT_COMMANDS = SshExecutionEngine.MAX_PLATFORM_THREADS + 44;
+
+    @Override
+    protected String getLaguage() {
+        return "bash";
+    }
+
+    @Override
+    protected void ping(ConnectorFacade connector) {
+        ScriptContext context = new ScriptContext(getLaguage(), "echo \"Hello World\"", null);
+        AssertJUnit.assertEquals("Hello World\n", connector.runScriptOnResource(context, null));
+    }
+
+    @DataProvider(name = "modes")
+    public Object[][] modes() {
+        String[] connectionModes = modes("loadtest.connectionMode", SshConfiguration.CONNECTION_MODE_EXEC,
+                SshConfiguration.CONNECTION_MODE_PERSISTENT, SshConfiguration.CONNECTION_MODE_SHARED);
+        String[] executionModes = modes("loadtest.executionMode", SshConfiguration.EXECUTION_MODE_EXEC,
+                SshConfiguration.EXECUTION_MODE_SHELL);
+        Object[][] combinations = new Object[connectionModes.length * executionModes.length][];
+        int i = 0;
+        for (String connectionMode : connectionModes) {
+            for (String executionMode : executionModes) {
+                combinations[i++] = new Object[] { connectionMode, executionMode };
+            }
+        }
+        return combinations;
+    }
+
+    private String[] modes(String property, String... defaults) {
+        String value = System.getProperty(property);
+        return value == null || value.isEmpty() ? defaults : value.split(",");
+    }
+
+    @Test(dataProvider = "modes")
+    public void testLoad(String connectionMode, String executionMode) throws Exception {
+        LoadTestHarness harness = new LoadTestHarness(THREADS, WARMUP, OPERATIONS);
+        ScriptContext context = new ScriptContext(getLaguage(), COMMAND, null);
+        SshMetrics.getInstance().reset();
+
+        LoadTestHarness.Result result = harness.run(() -> {
+            SshConnector connector = setupConnectorInstance(config -> {
+                config.setConnectionMode(connectionMode);
+                config.setExecutionMode(executionMode);
+                if (SshConfiguration.EXECUTION_MODE_SHELL.equals(executionMode)) {
+                    config.setIdleReadTimeout(10000);
+                }
+            });
+            return new LoadTestHarness.Worker() {
+                @Override
+                public void execute() {
+                    connector.runScriptOnResource(context, null);
+                }
+
+                @Override
+                public void close() {
+                    connector.dispose();
+                }
+            };
+        });
+        SshConnectionManager.getInstance().closeAll();
+
+        System.out.println("LOAD connectionMode=" + connectionMode + ", executionMode=" + executionMode + ": " + result);
+        // Where the time goes (warm-up included)
+        for (PhaseStatistics statistics : SshMetrics.getInstance().getPhaseStatistics()) {
+            System.out.println("LOAD   " + statistics);
+        }
+        if (result.getFirstError() != null) {
+            result.getFirstError().printStackTrace();
+        }
+        AssertJUnit.assertEquals("Errors during load test", 0, result.getErrors());
+        AssertJUnit.assertEquals(THREADS * OPERATIONS, result.getOperations());
+    }
+
+    /**
+     * Many slow commands at the same time, more than the engine has threads. They must wait for each other, not fail.
+     */
+    @Test(timeOut = 120000)
+    public void testConcurrentCommandsOverThreadLimit() throws Exception {
+        LoadTestHarness harness = new LoadTestHarness(CONCURRENT_COMMANDS, 0, 1);
+        ScriptContext context = new ScriptContext(getLaguage(), "sleep 1; echo done", null);
+
+        LoadTestHarness.Result result = harness.run(() -> {
+            SshConnector connector = setupConnectorInstance(config -> config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED));
+            return new LoadTestHarness.Worker() {
+                @Override
+                public void execute() {
+                    AssertJUnit.assertEquals("done\n", connector.runScriptOnResource(context, null));
+                }
+
+                @Override
+                public void close() {
+                    connector.dispose();
+                }
+            };
+        });
+        SshConnectionManager.getInstance().closeAll();
+
+        System.out.println("LOAD concurrent commands: " + result);
+        if (result.getFirstError() != null) {
+            result.getFirstError().printStackTrace();
+        }
+        AssertJUnit.assertEquals("Errors during load test", 0, result.getErrors());
+        AssertJUnit.assertEquals(CONCURRENT_COMMANDS, result.getOperations());
+    }
+
+    /**
+     * Many slow asynchronous scripts of a single connector instance, default maxAsyncOperations.
+     * The scripts over the limit wait in the queue, they must not take threads needed by the running scripts.
+     */
+    @Test(timeOut = 120000)
+    public void testAsyncScriptsOverThreadLimit() throws Exception {
+        SshConnector connector = setupConnectorInstance(config -> config.setConnectionMode(SshConfiguration.CONNECTION_MODE_SHARED));
+        try {
+            List<CompletableFuture<Object>> results = new ArrayList<>();
+            for (int i = 0; i < CONCURRENT_COMMANDS; i++) {
+                results.add(connector.runScriptOnResourceAsync(new ScriptContext(getLaguage(), "sleep 0.2; echo " + i, null), null));
+            }
+            for (int i = 0; i < CONCURRENT_COMMANDS; i++) {
+                AssertJUnit.assertEquals(i + "\n", results.get(i).get());
+            }
+        } finally {
+            connector.dispose();
+            SshConnectionManager.getInstance().closeAll();
+        }
+    }
+}
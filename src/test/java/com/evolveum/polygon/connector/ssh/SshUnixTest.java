@@ -26,10 +26,16 @@ import java.util.Map;
 /**
  * Test configured to suit UNIX (Linux) environment.
  *
- * The tests are disabled by default, as they need a special server-side setup.
+ * The tests are not part of the default build, as they need a special server-side setup.
+ * Run them with -Pexternal-servers.
  */
 public class SshUnixTest extends AbstractSshTest {
 
+    @Override
+    protected boolean isEmbeddedServer() {
+        return false;
+    }
+
     @Override
     protected String getHostname() {
         return "localhost";
@@ -28,12 +28,18 @@ import java.util.Map;
  *
  * This assumes that powershell is set as default shell on server.
  *
- * The tests are disabled by default, as they need a special server-side setup.
+ * The tests are not part of the default build, as they need a special server-side setup.
+ * Run them with -Pexternal-servers.
  */
 public class SshWindowsTest extends AbstractSshTest {
 
     private static final int PERF_ATTEMPTS = 10;
 
+    @Override
+    protected boolean isEmbeddedServer() {
+        return false;
+    }
+
     @Override
     protected String getHostname() {
         return "ad03.ad2019.lab.evolveum.com";